@@ -1,67 +1,271 @@
 package crawler.node.core;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 
+import crawler.node.utils.CrawlMetrics;
 import crawler.node.utils.HttpClient;
+import crawler.node.utils.RobotsMatcher;
 import crawler.node.utils.RobotsTxtInfo;
 import crawler.node.utils.URLInfo;
 
-public class CrawlDomain {
+public class CrawlDomain implements Delayed {
 	private static final Logger logger = Logger.getLogger(CrawlDomain.class);
 	private final URLInfo domain;
+	private final CrawlScheduler scheduler;
 
 	private AtomicBoolean isReady;
+	private final AtomicInteger inFlight;
+	private final AtomicBoolean scheduled;
+	private volatile long due;
+	private final ReentrantLock wakeLock;
+	private final Condition wake;
 
-	private ArrayList<String> disallowedLinks;
-	private ArrayList<String> allowedLinks;
+	private volatile RobotsMatcher rules;
 	private ArrayList<String> sitemaps;
-	private int crawlDelay;
-	private long lastGet;
+	// Fetches are asynchronous, so this is what keeps us polite: how many
+	// requests may be outstanding and how far apart they start
+	private final HostThrottle throttle;
+	private volatile long lastGet;
 
-	private ConcurrentLinkedQueue<String> headQ;
+	// New paths, best first; getQ holds those that passed their HEAD
+	private final Frontier headQ;
 	private ConcurrentLinkedQueue<String> getQ;
+	private final SeenSet seen;
+	// Set once the domain has moved to another node. Paths are queued
+	// under retireLock, so none can land after retire() has drained them
+	private volatile boolean retired;
+	private final Object retireLock = new Object();
 
-	public CrawlDomain(URLInfo domain) {
+	public CrawlDomain(URLInfo domain, CrawlScheduler scheduler) {
 		this.domain = new URLInfo(domain.getHostName(), domain.getPortNo(),
 				domain.getFilePath(), domain.isSecure());
-		headQ = new ConcurrentLinkedQueue<>();
+		this.scheduler = scheduler;
+		headQ = new Frontier(this.domain);
 		getQ = new ConcurrentLinkedQueue<>();
+		seen = SeenSet.forDomain(this.domain);
 		isReady = new AtomicBoolean(false);
+		inFlight = new AtomicInteger();
+		throttle = new HostThrottle(this.domain.getHostName());
+		scheduled = new AtomicBoolean(false);
+		wakeLock = new ReentrantLock();
+		wake = wakeLock.newCondition();
 		getRobots();
 	}
 
+	/**
+	 * The earliest time (ms) at which a deq call can hand out a URL, or -1
+	 * if that depends on something else happening first (robots.txt, a
+	 * request completing, new links).
+	 */
+	long nextEligible() {
+		if (retired || !isReady.get() || inFlight.get() >= throttle.getMaxInFlight()) {
+			return -1;
+		}
+		long now = System.currentTimeMillis();
+		if (!getQ.isEmpty() || (CrawlThread.SINGLE_GET && !headQ.isEmpty())) {
+			return Math.max(now, nextStart());
+		}
+		if (!headQ.isEmpty()) {
+			return now;
+		}
+		return -1;
+	}
+
+	/**
+	 * Per-domain mode: park until a deq call can hand out a URL. Uses a
+	 * Condition rather than wait() so a virtual thread unmounts while parked.
+	 */
+	void awaitEligible() throws InterruptedException {
+		wakeLock.lock();
+		try {
+			long due;
+			while (!retired
+					&& ((due = nextEligible()) < 0 || due > System
+							.currentTimeMillis())) {
+				if (due < 0) {
+					wake.await();
+				} else {
+					wake.await(due - System.currentTimeMillis(),
+							TimeUnit.MILLISECONDS);
+				}
+			}
+		} finally {
+			wakeLock.unlock();
+		}
+	}
+
+	void signal() {
+		wakeLock.lock();
+		try {
+			wake.signalAll();
+		} finally {
+			wakeLock.unlock();
+		}
+	}
+
+	boolean claim() {
+		return scheduled.compareAndSet(false, true);
+	}
+
+	void unclaim() {
+		scheduled.set(false);
+	}
+
+	void setDue(long due) {
+		this.due = due;
+	}
+
+	@Override
+	public long getDelay(TimeUnit unit) {
+		return unit.convert(due - System.currentTimeMillis(),
+				TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public int compareTo(Delayed o) {
+		if (o instanceof CrawlDomain) {
+			return Long.compare(due, ((CrawlDomain) o).due);
+		}
+		return Long.compare(getDelay(TimeUnit.MILLISECONDS),
+				o.getDelay(TimeUnit.MILLISECONDS));
+	}
+
 	private boolean canDoGet() {
-		return isReady.get()
-				&& !getQ.isEmpty()
-				&& (crawlDelay == 0 || lastGet + crawlDelay < System
-						.currentTimeMillis());
+		return isReady.get() && !getQ.isEmpty() && canStart();
+	}
+
+	private boolean canStart() {
+		return nextStart() <= System.currentTimeMillis();
+	}
+
+	/**
+	 * Earliest time the throttle lets the next GET start.
+	 */
+	private long nextStart() {
+		return Math.max(lastGet + throttle.getInterval(),
+				throttle.getNotBefore());
 	}
 
 	public URLInfo deqGet() {
-		if (!canDoGet()) {
+		if (!canDoGet() || !acquire()) {
+			return null;
+		}
+		String fp = getQ.poll();
+		if (fp == null) {
+			release();
 			return null;
 		}
 		lastGet = System.currentTimeMillis();
-		return URLInfo.withFP(domain, getQ.poll());
+		return URLInfo.withFP(domain, fp);
 	}
 
 	public URLInfo deqHead() {
-		if (!isReady.get() || headQ.isEmpty()) {
+		if (!isReady.get() || headQ.isEmpty() || !acquire()) {
 			return null;
 		}
-		return URLInfo.withFP(domain, headQ.poll());
+		String fp = headQ.poll();
+		if (fp == null) {
+			release();
+			return null;
+		}
+		return URLInfo.withFP(domain, fp);
+	}
+
+	/**
+	 * Like deqHead, but for URLs that will be fetched with a full
+	 * (conditional) GET, so the crawl delay applies.
+	 */
+	public URLInfo deqConditionalGet() {
+		if (!isReady.get() || headQ.isEmpty() || !canStart() || !acquire()) {
+			return null;
+		}
+		String fp = headQ.poll();
+		if (fp == null) {
+			release();
+			return null;
+		}
+		lastGet = System.currentTimeMillis();
+		return URLInfo.withFP(domain, fp);
+	}
+
+	private boolean acquire() {
+		while (true) {
+			int n = inFlight.get();
+			if (n >= throttle.getMaxInFlight()) {
+				return false;
+			}
+			if (inFlight.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Tell the throttle how a request to this host went: its response, or
+	 * t if it failed, and how long it took. Called before release().
+	 */
+	public void observe(HttpClient.HttpResponse hr, Throwable t, long nanos) {
+		throttle.observe(hr, t, nanos);
+	}
+
+	public HostThrottle getThrottle() {
+		return throttle;
+	}
+
+	/**
+	 * Must be called once for every URL handed out by deqGet/deqHead when
+	 * its request has completed.
+	 */
+	public void release() {
+		inFlight.decrementAndGet();
+		scheduler.schedule(this);
 	}
 
 	public void enqHead(String url) {
-		if (!headQ.contains(url) && !getQ.contains(url)
-				&& disallowedLinks == null || approved(url)) {
-			headQ.add(url);
+		enqHead(url, Frontier.NOT_LISTED, -1);
+	}
+
+	/**
+	 * Queue a path found in a sitemap with the given priority and lastmod
+	 * (ms, or -1), which count towards its place in the frontier. A path
+	 * already seen instead counts as one more link to it.
+	 */
+	public void enqHead(String url, double sitemapPriority, long lastModified) {
+		synchronized (retireLock) {
+			if (!retired) {
+				if (!approved(url)) {
+					return;
+				}
+				if (seen.add(url)) {
+					headQ.add(url, sitemapPriority, lastModified);
+					scheduler.schedule(this);
+				} else {
+					headQ.addInLink(url);
+				}
+				return;
+			}
 		}
+		CrawlManager.getManager().forward(URLInfo.withFP(domain, url));
+	}
+
+	/**
+	 * Paths waiting for their first request.
+	 */
+	public int queued() {
+		return headQ.size();
 	}
 
 	public void enqHead(ArrayList<String> urls) {
@@ -71,34 +275,85 @@ public class CrawlDomain {
 	}
 
 	public void enqGet(String url) {
-		getQ.add(url);
+		synchronized (retireLock) {
+			if (!retired) {
+				getQ.add(url);
+				scheduler.schedule(this);
+				return;
+			}
+		}
+		CrawlManager.getManager().forward(URLInfo.withFP(domain, url));
+	}
+
+	public URLInfo getDomain() {
+		return domain;
+	}
+
+	public boolean isRetired() {
+		return retired;
+	}
+
+	/**
+	 * Stop crawling this domain, which another node now owns, and return
+	 * the paths still waiting. Requests already out finish as usual.
+	 */
+	public List<String> retire() {
+		List<String> left = new ArrayList<>();
+		synchronized (retireLock) {
+			retired = true;
+			String fp;
+			while ((fp = getQ.poll()) != null) {
+				left.add(fp);
+			}
+			while ((fp = headQ.poll()) != null) {
+				left.add(fp);
+			}
+		}
+		signal();
+		return left;
 	}
 
 	public boolean approved(String fp) {
 		if (fp == null) {
 			return false;
 		}
-		if (disallowedLinks == null) {
-			return true;
-		}
-		int bestMatch = 0;
+		RobotsMatcher r = rules;
+		return r == null || r.allowed(fp);
+	}
 
-		for (String s : disallowedLinks) {
-			if (s.length() > 0 && fp.startsWith(s)) {
-				bestMatch = Math.max(bestMatch, s.length());
+	/**
+	 * Queue the pages listed in the robots.txt sitemaps, scored by their
+	 * sitemap priority and lastmod.
+	 */
+	private void loadSitemaps() {
+		ArrayList<LinkExtractor.SitemapEntry> entries = new ArrayList<>();
+		for (String s : sitemaps) {
+			URLInfo u;
+			try {
+				u = s.startsWith("/") ? URLInfo.withFP(domain, s)
+						: new URLInfo(s);
+			} catch (IllegalArgumentException e) {
+				logger.debug("Bad sitemap url " + s);
+				continue;
 			}
+			entries.addAll(LinkExtractor.siteMapProcess(u));
 		}
-
-		if (allowedLinks != null) {
-			for (String s : allowedLinks) {
-				if (s.length() > 0 && fp.startsWith(s)
-						&& s.length() > bestMatch) {
-					return true;
-				}
+		int queued = 0;
+		for (LinkExtractor.SitemapEntry e : entries) {
+			URLInfo u;
+			try {
+				u = new URLInfo(e.loc);
+			} catch (IllegalArgumentException ex) {
+				continue;
+			}
+			// A sitemap only speaks for its own host
+			if (domain.domainEquals(u)) {
+				enqHead(u.getFilePath(), e.priority, e.lastModified);
+				queued++;
 			}
 		}
-
-		return !(bestMatch > 0);
+		logger.debug("Queued " + queued + " sitemap urls for "
+				+ domain.toString());
 	}
 
 	// Get robots in a different thread
@@ -108,6 +363,7 @@ public class CrawlDomain {
 				URLInfo robotstxt = URLInfo.withFP(domain, "/robots.txt");
 
 				HttpClient.HttpResponse hr;
+				long start = System.nanoTime();
 				try {
 					hr = HttpClient.getRequest(robotstxt);
 				} catch (HttpClient.HttpClientException e) {
@@ -115,10 +371,16 @@ public class CrawlDomain {
 					logger.debug(e);
 					hr = null;
 				}
-				if (hr != null && hr.status == 200) {
+				CrawlMetrics.getMetrics().robotsFetched(
+						System.nanoTime() - start);
+				ByteBuffer body = hr != null && hr.status == 200 ? hr
+						.getBody() : null;
+				if (body != null) {
 					logger.debug("Parsing robots");
 					RobotsTxtInfo robots = new RobotsTxtInfo();
-					Scanner s = new Scanner(new String(hr.data));
+					Scanner s = new Scanner(Charset.defaultCharset()
+							.decode(body).toString());
+					hr.release();
 					String currUserAgent = null;
 					while (s.hasNextLine()) {
 						String line = s.nextLine().trim();
@@ -167,35 +429,26 @@ public class CrawlDomain {
 						userAgent = "cis455crawler";
 					}
 
-					allowedLinks = robots.getAllowedLinks(userAgent);
-					disallowedLinks = robots.getDisallowedLinks(userAgent);
+					RobotsMatcher m = robots.getMatcher(userAgent);
+					rules = m.isEmpty() ? null : m;
 					sitemaps = robots.getSitemapLinks();
 					Integer cd = robots.getCrawlDelay(userAgent);
-					if (cd == null) {
-						crawlDelay = 0;
-					} else {
-						crawlDelay = cd * 1000;
-						lastGet = System.currentTimeMillis() - cd;
-					}
+					throttle.setRobotsDelay(cd == null ? 0 : cd * 1000L);
 					s.close();
 				} else {
-					allowedLinks = null;
-					disallowedLinks = null;
-					crawlDelay = 0;
+					rules = null;
+					throttle.setRobotsDelay(0);
 				}
 
-				isReady.lazySet(true);
+				isReady.set(true);
+				scheduler.schedule(CrawlDomain.this);
 
 				if (sitemaps != null && !sitemaps.isEmpty()) {
 					new Thread(new Runnable() {
 						public void run() {
-							for (String s : sitemaps) {
-								headQ.addAll(LinkExtractor
-										.siteMapProcess(URLInfo.withFP(domain,
-												s)));
-							}
+							loadSitemaps();
 						}
-					}).run();
+					}).start();
 				}
 
 				return;
@@ -1,37 +1,43 @@
 package crawler.node.core;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.HashMap;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import org.apache.log4j.Logger;
 import org.rabinfingerprint.fingerprint.RabinFingerprintLong;
 import org.rabinfingerprint.polynomial.Polynomial;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.AmazonSQSClient;
-import com.amazonaws.services.sqs.model.CreateQueueRequest;
-import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
-import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
-
 import crawler.node.io.DynamoInterface;
 import crawler.node.io.DynamoInterface.FingerPrintRecord;
 import crawler.node.io.DynamoInterface.SiteInfo;
+import crawler.node.io.SegmentStore;
 import crawler.node.master.CrawlerMaster;
+import crawler.node.transport.MessageBatcher;
+import crawler.node.transport.QueueReceiver;
+import crawler.node.transport.Transport;
+import crawler.node.transport.Transport.Delivery;
+import crawler.node.transport.Transports;
+import crawler.node.utils.CrawlMetrics;
+import crawler.node.utils.DnsCache;
+import crawler.node.utils.HashRing;
+import crawler.node.utils.HttpClient;
 import crawler.node.utils.HttpClient.HttpResponse;
+import crawler.node.utils.SimHash;
 import crawler.node.utils.URLInfo;
 
 public class CrawlManager {
@@ -48,6 +54,24 @@ public class CrawlManager {
 	private File localStorageDir;
 	private static final int crawlThreadNum = 10;
 	private static final int extractThreadNum = 10;
+	// "pooled": crawl threads share the scheduler queue. "perDomain": a
+	// (virtual) thread per domain, and extraction on virtual threads too
+	public static final boolean PER_DOMAIN = "perDomain".equals(System
+			.getProperty("crawler.mode", "pooled"));
+	// Don't store pages whose SimHash is within
+	// NearDuplicateIndex.MAX_DISTANCE bits of a page already stored on
+	// this node
+	public static final boolean NEAR_DUPLICATES = Boolean.parseBoolean(System
+			.getProperty("crawler.nearDup", "true"));
+	// Seconds a receive waits for a message, so an idle local or TCP
+	// transport does not spin
+	private static final int RECEIVE_WAIT = 1;
+	// How long a leaving node keeps forwarding what still arrives for it
+	public static final long LEAVE_GRACE_MS = Long.getLong(
+			"crawler.leaveGraceMs", 5000);
+	// Threads handling fetched pages where there are no virtual threads
+	public static final int HAND_OFF_THREADS = Integer.getInteger(
+			"crawler.handOffThreads", 64);
 
 	private static CrawlManager manager;
 
@@ -74,22 +98,39 @@ public class CrawlManager {
 		return localStorageDir;
 	}
 
+	public SegmentStore getSegments() {
+		return segments;
+	}
+
 	public long getCrawlTime() {
 		return thisCrawlTime;
 	}
 
-	private final AWSCredentials credentials;
-	private final AmazonSQS sqs;
+	private final Transport transport;
+	private final MessageBatcher batcher;
 	private String myQ;
-	private Thread messageReceiver;
+	private QueueReceiver messageReceiver;
 	private Thread managementReceiver;
 	private Thread[] retrieverThreads;
 	private Thread[] extractorThreads;
+	private ExecutorService domainWorkers;
+	private ExecutorService extractWorkers;
+	// Page handling, off the HTTP callback threads
+	private final ExecutorService handOffWorkers;
 	private boolean done;
-
-	public final HashMap<String, CrawlDomain> domains;
-	public final ConcurrentLinkedQueue<CrawlDomain> domQ;
-	public final ConcurrentLinkedQueue<HttpResponse> extractorQ;
+	private volatile boolean shuttingDown;
+	// From the master's last "qring:"; null until one arrives
+	private volatile HashRing ring;
+	private long ringSeq = -1;
+	private volatile boolean leaving;
+
+	// Read without the lock; changes (new domains, domains handed over in
+	// setRing) are made holding it
+	public final ConcurrentHashMap<String, CrawlDomain> domains;
+	public final CrawlScheduler scheduler;
+	public final ExtractionQueue extractorQ;
+	private final NearDuplicateIndex nearDuplicates;
+	private SegmentStore segments;
 
 	private void runPieces() {
 		Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -104,8 +145,13 @@ public class CrawlManager {
 	}
 	
 	private void runCrawlerPieces() {
-		messageReceiver = new Thread(new MessageReceiver());
-		messageReceiver.start();
+		segments = new SegmentStore(localStorageDir);
+		if (PER_DOMAIN) {
+			runPerDomainPieces();
+			return;
+		}
+		messageReceiver = new QueueReceiver(transport, myQ,
+				new LinkHandler()).start();
 		logger.debug("Starting crawl threads");
 		retrieverThreads = new Thread[crawlThreadNum];
 		for (int i = 0; i < crawlThreadNum; i++) {
@@ -119,48 +165,204 @@ public class CrawlManager {
 		}
 	}
 
+	private void runPerDomainPieces() {
+		logger.debug("Starting per-domain crawl");
+		domainWorkers = newVirtualThreadExecutor();
+		extractWorkers = newVirtualThreadExecutor();
+		synchronized (domains) {
+			for (CrawlDomain c : domains.values()) {
+				domainWorkers.execute(new DomainWorker(c));
+			}
+		}
+		extractorThreads = new Thread[] { new Thread(
+				new ExtractionDispatcher()) };
+		extractorThreads[0].start();
+		messageReceiver = new QueueReceiver(transport, myQ,
+				new LinkHandler()).start();
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor() when running on a JVM that
+	 * has it (looked up reflectively, as we still build for Java 8), else a
+	 * cached pool of ordinary threads.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		return newVirtualThreadExecutor(0);
+	}
+
+	/**
+	 * As above, but falling back to a pool of at most threads ordinary
+	 * threads if threads is positive.
+	 */
+	private static ExecutorService newVirtualThreadExecutor(int threads) {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			logger.warn("No virtual threads on this JVM, using platform"
+					+ " threads");
+			return threads > 0 ? Executors.newFixedThreadPool(threads)
+					: Executors.newCachedThreadPool();
+		}
+	}
+
 	private CrawlManager() {
 		thisCrawlTime = -1;
 		done = false;
-		domains = new HashMap<>();
-		domQ = new ConcurrentLinkedQueue<>();
-		extractorQ = new ConcurrentLinkedQueue<>();
-		credentials = new ProfileCredentialsProvider().getCredentials();
-		sqs = new AmazonSQSClient(credentials);
-		sqs.setRegion(Region.getRegion(Regions.US_EAST_1));
-		myQ = sqs.createQueue(
-				new CreateQueueRequest("Req" + new Random().nextInt()))
-				.getQueueUrl();
-		sqs.sendMessage(new SendMessageRequest(MASTER_RECEIVE, "qnode:" + myQ));
+		domains = new ConcurrentHashMap<>();
+		scheduler = new CrawlScheduler(PER_DOMAIN);
+		extractorQ = new ExtractionQueue();
+		handOffWorkers = newVirtualThreadExecutor(HAND_OFF_THREADS);
+		nearDuplicates = new NearDuplicateIndex();
+		registerGauges();
+		transport = Transports.forNode();
+		batcher = new MessageBatcher(transport);
+		myQ = transport.createChannel("Req" + new Random().nextInt());
+		transport.send(MASTER_RECEIVE, "qnode:" + myQ);
+		CrawlMetrics.getMetrics().sqsSent(1);
+	}
+
+	private void registerGauges() {
+		CrawlMetrics metrics = CrawlMetrics.getMetrics();
+		metrics.registerGauge(CrawlMetrics.SCHEDULER_DEPTH,
+				new CrawlMetrics.Gauge() {
+					@Override
+					public long get() {
+						return scheduler.size();
+					}
+				});
+		metrics.registerGauge(CrawlMetrics.EXTRACTOR_DEPTH,
+				new CrawlMetrics.Gauge() {
+					@Override
+					public long get() {
+						return extractorQ.size();
+					}
+				});
+		metrics.registerGauge(CrawlMetrics.EXTRACTOR_BYTES,
+				new CrawlMetrics.Gauge() {
+					@Override
+					public long get() {
+						return extractorQ.bytes();
+					}
+				});
+		metrics.registerGauge(CrawlMetrics.EXTRACTOR_PRODUCER_WAIT,
+				new CrawlMetrics.Gauge() {
+					@Override
+					public long get() {
+						return extractorQ.getProducerWaitMillis();
+					}
+				});
+		metrics.registerGauge(CrawlMetrics.EXTRACTOR_CONSUMER_WAIT,
+				new CrawlMetrics.Gauge() {
+					@Override
+					public long get() {
+						return extractorQ.getConsumerWaitMillis();
+					}
+				});
+		metrics.registerGauge(CrawlMetrics.DOMAINS, new CrawlMetrics.Gauge() {
+			@Override
+			public long get() {
+				synchronized (domains) {
+					return domains.size();
+				}
+			}
+		});
+		metrics.start();
+	}
+
+	/**
+	 * Run r off the HTTP callback threads. Handling a page looks up and
+	 * saves records and can block on a full extraction queue, which would
+	 * hold up every other request's completion.
+	 */
+	public void handOff(Runnable r) {
+		handOffWorkers.execute(r);
 	}
 
 	public void depositDoc(URLInfo u, HttpResponse hr) {
 		logger.debug("Deposit #" + depositCount++ + ": " + u.toString());
-		
-		extractorQ.offer(hr);
-		
+		CrawlMetrics.getMetrics().pageDeposited();
+
+		// The extractor releases the page buffer, so it only gets the
+		// response once we are done reading it here
+		boolean extract = true;
+		try {
+			extract = storeDoc(u, hr);
+		} finally {
+			if (extract) {
+				queueForExtraction(hr);
+			} else {
+				hr.release();
+			}
+		}
+	}
+
+	/**
+	 * Blocks while the extraction stage is full.
+	 */
+	public void queueForExtraction(HttpResponse hr) {
+		try {
+			extractorQ.put(hr);
+		} catch (InterruptedException e) {
+			hr.release();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns false if the page could not be decoded. A near duplicate of
+	 * a page already stored is not stored again: its record points at that
+	 * page, but its links are still extracted.
+	 */
+	private boolean storeDoc(URLInfo u, HttpResponse hr) {
 		RabinFingerprintLong w = new RabinFingerprintLong(poly);
-		w.pushBytes(hr.data);
+		ByteBuffer body = hr.getBody();
+		if (body == null) {
+			logger.debug("Undecodable page: " + u.toString());
+			return false;
+		}
+		byte[] chunk = new byte[8192];
+		while (body.hasRemaining()) {
+			int count = Math.min(chunk.length, body.remaining());
+			body.get(chunk, 0, count);
+			w.pushBytes(chunk, 0, count);
+		}
 		long fp = w.getFingerprintLong();
 
 		FingerPrintRecord fr = DynamoInterface.getFPRecord(fp);
 		if (fr == null) {
-			fr = new FingerPrintRecord();
-			fr.setFilepath(Long.toString(fp));
-			fr.setFingerprint(fp);
+			long simhash = SimHash.compute(hr.getBody());
+			// Short pages are left to the exact fingerprint
+			if (NEAR_DUPLICATES && simhash != SimHash.TOO_SHORT) {
+				long canonical = nearDuplicates.findOrAdd(simhash, fp);
+				if (canonical != fp) {
+					logger.debug("Near duplicate of " + canonical + ": "
+							+ u.toString());
+					saveSiteInfo(u, hr, canonical);
+					return true;
+				}
+			}
+			String location;
 			try {
-				FileOutputStream f = new FileOutputStream(new File(localStorageDir,
-						Long.toString(fp)));
-				f.write(hr.data);
-				f.close();
+				location = segments.append(u.toString(), fp, hr.headers,
+						hr.getEncodedBody(), hr.getEncoding());
 			} catch (IOException e) {
 				logger.debug("IOException saving doc", e);
-				return;
+				return true;
 			}
+			fr = new FingerPrintRecord();
+			fr.setFilepath(location);
+			fr.setFingerprint(fp);
+			fr.setSimhash(simhash);
 		}
 		fr.setLastParsed(thisCrawlTime);
 		fr.save();
-		
+
+		saveSiteInfo(u, hr, fp);
+		return true;
+	}
+
+	private void saveSiteInfo(URLInfo u, HttpResponse hr, long fp) {
 		SiteInfo si = DynamoInterface.getSiteInfo(u.toString());
 		if (si == null) {
 			si = new SiteInfo();
@@ -168,20 +370,118 @@ public class CrawlManager {
 		}
 		si.setCrawlDate(manager.getCrawlTime());
 		si.setFingerPrint(fp);
+		si.setEtag(HttpClient.firstHeader(hr.headers, "ETag"));
 		si.save();
 	}
 
 	public void sendTodos(List<String> links) {
-		sqs.sendMessage(TODOQ, String.join(";", links));
+		for (String link : links) {
+			batcher.add(TODOQ, link);
+		}
 	}
 
 	public void reportDoneLink(String link) {
-		sqs.sendMessage(DONEQ, link);
+		try {
+			// Encoded, as it shares a message with other links
+			batcher.add(DONEQ, URLEncoder.encode(link, "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+		}
+	}
+
+	/**
+	 * A "qring:" from the master. Pollers can hand them over out of order,
+	 * so any older than the last one applied is dropped.
+	 */
+	private synchronized void setRing(long seq, HashRing r) {
+		if (seq <= ringSeq) {
+			logger.debug("Dropping ring " + seq + ", have " + ringSeq);
+			return;
+		}
+		ringSeq = seq;
+		if (leaving) {
+			// Sent before the master had our "qleave:"
+			r = r.without(myQ);
+		}
+		setRing(r);
+	}
+
+	/**
+	 * A new membership: give up the domains now owned by another node,
+	 * handing their waiting paths to it.
+	 */
+	private synchronized void setRing(HashRing r) {
+		ring = r;
+		List<CrawlDomain> lost = new ArrayList<>();
+		synchronized (domains) {
+			Iterator<Map.Entry<String, CrawlDomain>> it = domains.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				CrawlDomain c = it.next().getValue();
+				if (!myQ.equals(r.ownerOf(c.getDomain().getHostName()))) {
+					lost.add(c);
+					it.remove();
+				}
+			}
+		}
+		int moved = 0;
+		for (CrawlDomain c : lost) {
+			for (String fp : c.retire()) {
+				forward(URLInfo.withFP(c.getDomain(), fp));
+				moved++;
+			}
+		}
+		logger.info("Ring of " + r.getMembers().size() + " nodes: handed "
+				+ lost.size() + " domains (" + moved + " urls) over");
+	}
+
+	/**
+	 * Send u to the node that now crawls its host.
+	 */
+	void forward(URLInfo u) {
+		HashRing r = ring;
+		String owner = r == null ? null : r.ownerOf(u.getHostName());
+		if (owner == null) {
+			logger.warn("No node left to take " + u.toString());
+			return;
+		}
+		try {
+			batcher.add(owner, URLEncoder.encode(u.toString(), "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+		}
+	}
+
+	/**
+	 * Leave a running crawl: hand every domain over, tell the master, and
+	 * keep forwarding what was already on its way here for a while.
+	 */
+	private void leave() {
+		HashRing r = ring;
+		if (r == null || shuttingDown || !r.contains(myQ)) {
+			return;
+		}
+		leaving = true;
+		setRing(r.without(myQ));
+		batcher.flush();
+		transport.send(MASTER_RECEIVE, "qleave:" + myQ);
+		try {
+			Thread.sleep(LEAVE_GRACE_MS);
+		} catch (InterruptedException e) {
+		}
 	}
 
 	public void cleanupp() {
+		leave();
 		done = true;
-		sqs.deleteQueue(myQ);
+		if (messageReceiver != null) {
+			messageReceiver.stop();
+		}
+		batcher.close();
+		transport.deleteChannel(myQ);
+		if (segments != null) {
+			segments.close();
+		}
+		DynamoInterface.close();
+		CrawlMetrics.getMetrics().stop();
 	}
 
 	// Message Receiving
@@ -194,42 +494,94 @@ public class CrawlManager {
 				logger.debug("Issue with url " + s);
 				continue;
 			}
+			HashRing r = ring;
+			if (r != null && !myQ.equals(r.ownerOf(u.getHostName()))) {
+				// Sent before the master or we knew it moved
+				forward(u);
+				continue;
+			}
 			URLInfo dom = URLInfo.withFP(u, "/");
 			CrawlDomain c = domains.get(dom.toString());
 			if (c == null) {
 				synchronized (domains) {
 					c = domains.get(dom.toString());
 					if (c == null) {
-						c = new CrawlDomain(dom);
+						DnsCache.prefetch(dom.getHostName());
+						c = new CrawlDomain(dom, scheduler);
 						domains.put(dom.toString(), c);
+						if (domainWorkers != null) {
+							domainWorkers.execute(new DomainWorker(c));
+						}
 					}
 				}
-				domQ.add(c);
 			}
 			c.enqHead(u.getFilePath());
 		}
 	}
 
+	/**
+	 * Per-domain mode: hands each page on the extraction queue to its own
+	 * virtual thread, with at most extractThreadNum of them parsing at once.
+	 */
+	private class ExtractionDispatcher implements Runnable {
+		private final Logger logger = Logger
+				.getLogger(ExtractionDispatcher.class);
+
+		@Override
+		public void run() {
+			logger.debug("Extraction Dispatcher Running");
+			final Semaphore running = new Semaphore(extractThreadNum);
+			final ExtractorThread extractor = new ExtractorThread();
+			while (!done) {
+				final HttpResponse hr;
+				try {
+					hr = extractorQ.take();
+					running.acquire();
+				} catch (InterruptedException e) {
+					break;
+				}
+				try {
+					extractWorkers.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								extractor.process(hr);
+							} catch (Exception e) {
+								logger.debug(e);
+							} finally {
+								running.release();
+							}
+						}
+					});
+				} catch (RuntimeException e) {
+					running.release();
+					hr.release();
+					logger.error("Could not start extraction", e);
+				}
+			}
+		}
+	}
+
 	private class ManageReceiver implements Runnable {
 		private final Logger logger = Logger.getLogger(ManageReceiver.class);
 
 		@Override
 		public void run() {
 			logger.debug("Management Receiver Running");
-			List<Message> msgs;
+			List<Delivery> msgs;
 			while (!done) {
-				msgs = sqs.receiveMessage(MASTER_ANNOUNCE).getMessages();
-				List<DeleteMessageBatchRequestEntry> del = new LinkedList<>();
+				msgs = transport.receive(MASTER_ANNOUNCE, 1, RECEIVE_WAIT);
+				CrawlMetrics.getMetrics().sqsReceived(msgs.size());
+				List<Delivery> del = new LinkedList<>();
 				boolean shutdown = false;
-				for (Message m : msgs) {
+				for (Delivery m : msgs) {
 					String s = m.getBody();
 					logger.debug("Received message " + s);
 
 					if (s.startsWith("qtime:")) {
 						if (thisCrawlTime < 0) {
 							thisCrawlTime = Long.parseLong(s.substring(6));
-							del.add(new DeleteMessageBatchRequestEntry(m
-									.getMessageId(), m.getReceiptHandle()));
+							del.add(m);
 							if (localStorageDir != null) {
 								runCrawlerPieces();
 							}
@@ -240,8 +592,7 @@ public class CrawlManager {
 					if (s.startsWith("qpath")) {
 						if (localStorageDir == null) {
 							localStorageDir = new File(s.substring(6));
-							del.add(new DeleteMessageBatchRequestEntry(m
-									.getMessageId(), m.getReceiptHandle()));
+							del.add(m);
 							if (thisCrawlTime > 0) {
 								runCrawlerPieces();
 							}
@@ -253,15 +604,15 @@ public class CrawlManager {
 						String cmd = s.substring(6);
 						if (cmd.equals("shutdown")) {
 							shutdown = true;
-							del.add(new DeleteMessageBatchRequestEntry(m
-									.getMessageId(), m.getReceiptHandle()));
+							shuttingDown = true;
+							del.add(m);
 						}
 						break;
 					}
 				}
 
 				if (!del.isEmpty()) {
-					sqs.deleteMessageBatch(MASTER_ANNOUNCE, del);
+					transport.ack(MASTER_ANNOUNCE, del);
 				}
 
 				if (shutdown) {
@@ -272,37 +623,31 @@ public class CrawlManager {
 		}
 	}
 
-	private class MessageReceiver implements Runnable {
-		private final Logger logger = Logger.getLogger(MessageReceiver.class);
-
+	/**
+	 * Links the master or other nodes sent us, and "qring:" updates.
+	 */
+	private class LinkHandler implements QueueReceiver.Handler {
 		@Override
-		public void run() {
-			logger.debug("Message Receiver Running");
-			List<Message> msgs;
-			while (!done) {
-				msgs = sqs.receiveMessage(myQ).getMessages();
-				List<String> fullPaths = new LinkedList<>();
-				List<DeleteMessageBatchRequestEntry> del = new LinkedList<>();
-				for (Message m : msgs) {
-					String s = m.getBody();
-					logger.debug("Received message " + s);
+		public void handle(List<Delivery> msgs) {
+			List<String> fullPaths = new ArrayList<>();
+			for (Delivery m : msgs) {
+				String s = m.getBody();
+				logger.debug("Received message " + s);
+				if (s.startsWith("qring:")) {
+					int i = s.indexOf(':', 6);
+					setRing(Long.parseLong(s.substring(6, i)),
+							HashRing.parse(s.substring(i + 1)));
+					continue;
+				}
 
-					for (String u : s.split(";")) {
-						try {
-							fullPaths.add(URLDecoder.decode(u, "UTF-8"));
-						} catch (UnsupportedEncodingException e) {
-						}
+				for (String u : s.split(";")) {
+					try {
+						fullPaths.add(URLDecoder.decode(u, "UTF-8"));
+					} catch (UnsupportedEncodingException e) {
 					}
-
-					del.add(new DeleteMessageBatchRequestEntry(
-							m.getMessageId(), m.getReceiptHandle()));
-				}
-				addNewLinks(fullPaths);
-				if (!del.isEmpty()) {
-					sqs.deleteMessageBatch(myQ, del);
 				}
 			}
+			addNewLinks(fullPaths);
 		}
-
 	}
 }
@@ -0,0 +1,70 @@
+package crawler.node.core;
+
+import java.util.concurrent.DelayQueue;
+
+/**
+ * Hands crawl threads the domains that can fetch right now, in the order
+ * they become eligible. A domain is in the queue at most once, and only
+ * while it has work it is allowed to start: domains waiting on robots.txt,
+ * on an outstanding request or on new links sit outside the queue until
+ * CrawlDomain tells us something changed.
+ *
+ * In per-domain mode there is no shared queue; every domain has its own
+ * worker parked in CrawlDomain.awaitEligible(), and schedule() just wakes it.
+ */
+public class CrawlScheduler {
+	private final DelayQueue<CrawlDomain> queue;
+	private final boolean perDomain;
+
+	public CrawlScheduler() {
+		this(false);
+	}
+
+	public CrawlScheduler(boolean perDomain) {
+		queue = new DelayQueue<>();
+		this.perDomain = perDomain;
+	}
+
+	/**
+	 * Called whenever a domain may have gained work. A no-op if the domain
+	 * is already queued or a thread is working on it.
+	 */
+	public void schedule(CrawlDomain c) {
+		if (perDomain) {
+			c.signal();
+			return;
+		}
+		if (c.claim()) {
+			requeue(c);
+		}
+	}
+
+	/**
+	 * Blocks until some domain is due.
+	 */
+	public CrawlDomain take() throws InterruptedException {
+		return queue.take();
+	}
+
+	/**
+	 * Give back a domain obtained from take() (or just claimed), queueing it
+	 * for its next eligible time if it has one.
+	 */
+	public void requeue(CrawlDomain c) {
+		long due = c.nextEligible();
+		if (due >= 0) {
+			c.setDue(due);
+			queue.offer(c);
+			return;
+		}
+		c.unclaim();
+		// Work may have arrived after we looked but before we let go
+		if (c.nextEligible() >= 0) {
+			schedule(c);
+		}
+	}
+
+	public int size() {
+		return queue.size();
+	}
+}
@@ -1,31 +1,46 @@
 package crawler.node.core;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import org.apache.log4j.Logger;
-import org.aspectj.util.FileUtil;
 
 import crawler.node.io.DynamoInterface;
 import crawler.node.io.DynamoInterface.FingerPrintRecord;
 import crawler.node.io.DynamoInterface.SiteInfo;
+import crawler.node.io.SegmentStore;
+import crawler.node.utils.AsyncHttpClient;
+import crawler.node.utils.CrawlMetrics;
 import crawler.node.utils.HttpClient;
 import crawler.node.utils.HttpClient.HttpResponse;
 import crawler.node.utils.ServerUtils;
 import crawler.node.utils.URLInfo;
 
-public class CrawlThread extends Thread {
+public class CrawlThread implements Runnable {
 
 	private static final Logger logger = Logger.getLogger(CrawlThread.class);
+	// Fetch new URLs with one conditional GET instead of HEAD then GET
+	public static final boolean SINGLE_GET = Boolean.parseBoolean(System
+			.getProperty("crawler.singleGet", "true"));
+
+	private static final HttpClient.HeaderCheck FETCH_CHECK = new HttpClient.HeaderCheck() {
+		@Override
+		public boolean accept(HttpResponse hr) {
+			return lengthCheck(hr) && typeCheck(hr);
+		}
+	};
 	private CrawlManager manager;
-	private ConcurrentLinkedQueue<CrawlDomain> domainQ;
+	private CrawlScheduler scheduler;
 
 	public CrawlThread() {
 		manager = CrawlManager.getManager();
-		domainQ = manager.domQ;
+		scheduler = manager.scheduler;
 	}
 
 	private static boolean typeCheck(HttpResponse hr) {
@@ -97,57 +112,90 @@ public class CrawlThread extends Thread {
 		return false;
 	}
 
-	private void goGetPart(URLInfo todo) {
+	private CompletableFuture<?> goGetPart(final URLInfo todo, final CrawlDomain c) {
 		logger.debug("GET: " + todo.toString());
-		HttpResponse hr;
-		try {
-			hr = HttpClient.getRequest(todo);
-		} catch (HttpClient.HttpClientException c1) {
-			logger.debug(c1);
+		final long start = System.nanoTime();
+		return HttpClient.getRequestAsync(todo).whenComplete(
+				new BiConsumer<HttpResponse, Throwable>() {
+					@Override
+					public void accept(final HttpResponse hr,
+							final Throwable t) {
+						long elapsed = System.nanoTime() - start;
+						c.observe(hr, t, elapsed);
+						c.release();
+						CrawlMetrics.getMetrics().fetched(hr, t, elapsed);
+						manager.handOff(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									onGet(todo, hr, t);
+								} catch (Exception e) {
+									logger.error("GET callback", e);
+								}
+							}
+						});
+					}
+				});
+	}
+
+	private void onGet(URLInfo todo, HttpResponse hr, Throwable t) {
+		if (t != null) {
+			logger.debug(t.getCause() != null ? t.getCause() : t);
 			manager.reportDoneLink(todo.toString());
 			return;
 		}
-		if (hr == null || hr.status != 200) {
+		if (hr == null || hr.status != 200 || !hr.hasBody()) {
 			logger.debug("WTH?!: " + todo.toString());
+			manager.reportDoneLink(todo.toString());
+			return;
 		}
 		manager.depositDoc(todo, hr);
 		manager.reportDoneLink(todo.toString());
 	}
 
-	private void goHeadPart(URLInfo todo, CrawlDomain c) {
+	private CompletableFuture<?> goHeadPart(final URLInfo todo, final CrawlDomain c) {
 
 		logger.debug("HEAD: " + todo.toString());
 		String date = null;
-		SiteInfo si = DynamoInterface.getSiteInfo(todo.toString());
+		final SiteInfo si = DynamoInterface.getSiteInfo(todo.toString());
 
 		if (si != null) {
 			date = ServerUtils.getDate(si.getCrawlDate());
 		}
-		HttpResponse hr;
-		try {
-			hr = HttpClient.headRequest(todo, date);
-		} catch (HttpClient.HttpClientException c1) {
-			logger.debug(c1);
+		final long start = System.nanoTime();
+		return HttpClient.headRequestAsync(todo, date).whenComplete(
+				new BiConsumer<HttpResponse, Throwable>() {
+					@Override
+					public void accept(final HttpResponse hr,
+							final Throwable t) {
+						long elapsed = System.nanoTime() - start;
+						c.observe(hr, t, elapsed);
+						c.release();
+						CrawlMetrics.getMetrics().fetched(hr, t, elapsed);
+						manager.handOff(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									onHead(todo, c, si, hr, t);
+								} catch (Exception e) {
+									logger.error("HEAD callback", e);
+								}
+							}
+						});
+					}
+				});
+	}
+
+	private void onHead(URLInfo todo, CrawlDomain c, SiteInfo si,
+			HttpResponse hr, Throwable t) {
+		if (t != null) {
+			logger.debug(t.getCause() != null ? t.getCause() : t);
 			manager.reportDoneLink(todo.toString());
 			return;
 		}
 
 		if (hr.status == 304) {
-			FingerPrintRecord fp = DynamoInterface.getFPRecord(si
-					.getFingerPrint());
-			if (fp == null) {
-				logger.error("Not modified since, but missing FP record");
-				return;
-			}
-			if (fp.getLastParsed() < manager.getCrawlTime()) {
-				try {
-					hr.data = FileUtil.readAsByteArray(new File(manager
-							.getLocalStorageDir(), fp.getFilepath()));
-					manager.extractorQ.offer(hr);
-				} catch (IOException e) {
-					logger.debug("IO Exception retrieving file", e);
-				}
-			}
+			notModified(todo, si, hr);
 			return;
 		}
 
@@ -176,7 +224,7 @@ public class CrawlThread extends Thread {
 					c.enqGet(hr.u.getFilePath());
 				}
 			} else {
-				manager.sendTodos(Collections.singletonList(hr.u.toString()));
+				sendTodo(hr.u);
 			}
 		} else {
 			c.enqGet(todo.getFilePath());
@@ -184,35 +232,176 @@ public class CrawlThread extends Thread {
 
 	}
 
+	private void notModified(URLInfo todo, SiteInfo si, HttpResponse hr) {
+		manager.reportDoneLink(todo.toString());
+		FingerPrintRecord fp = DynamoInterface.getFPRecord(si
+				.getFingerPrint());
+		if (fp == null) {
+			logger.error("Not modified since, but missing FP record");
+			return;
+		}
+		if (fp.getLastParsed() < manager.getCrawlTime()) {
+			try {
+				ByteBuffer page = manager.getSegments().read(fp.getFilepath());
+				hr.setBody(page, 0, page.limit(),
+						SegmentStore.encodingOf(fp.getFilepath()));
+				manager.queueForExtraction(hr);
+			} catch (IOException e) {
+				logger.debug("IO Exception retrieving file", e);
+			}
+		}
+	}
+
+	private CompletableFuture<?> goConditionalGetPart(final URLInfo todo, final CrawlDomain c) {
+		logger.debug("Conditional GET: " + todo.toString());
+		String date = null;
+		String etag = null;
+		final SiteInfo si = DynamoInterface.getSiteInfo(todo.toString());
+
+		if (si != null) {
+			date = ServerUtils.getDate(si.getCrawlDate());
+			etag = si.getEtag();
+		}
+		final long start = System.nanoTime();
+		return HttpClient.conditionalGetRequestAsync(todo, date, etag,
+				FETCH_CHECK)
+				.whenComplete(new BiConsumer<HttpResponse, Throwable>() {
+					@Override
+					public void accept(final HttpResponse hr,
+							final Throwable t) {
+						long elapsed = System.nanoTime() - start;
+						c.observe(hr, t, elapsed);
+						c.release();
+						CrawlMetrics.getMetrics().fetched(hr, t, elapsed);
+						manager.handOff(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									onConditionalGet(todo, c, si, hr, t);
+								} catch (Exception e) {
+									logger.error("Conditional GET callback", e);
+								}
+							}
+						});
+					}
+				});
+	}
+
+	private void onConditionalGet(URLInfo todo, CrawlDomain c, SiteInfo si,
+			HttpResponse hr, Throwable t) {
+		if (t != null) {
+			logger.debug(t.getCause() != null ? t.getCause() : t);
+			manager.reportDoneLink(todo.toString());
+			return;
+		}
+
+		if (hr.status == 304 && si != null) {
+			notModified(todo, si, hr);
+			return;
+		}
+
+		manager.reportDoneLink(todo.toString());
+
+		if (hr.status == 301 || hr.status == 302 || hr.status == 303
+				|| hr.status == 307 || hr.status == 308) {
+			// Queued like a new link, so robots.txt and the target host's
+			// throttle apply before anything is downloaded from it
+			URLInfo target;
+			try {
+				target = HttpClient.redirectTarget(hr, todo);
+			} catch (RuntimeException e) {
+				logger.debug("Bad redirect from " + todo.toString(), e);
+				return;
+			}
+			if (todo.domainEquals(target)) {
+				c.enqHead(target.getFilePath());
+			} else {
+				sendTodo(target);
+			}
+			return;
+		}
+
+		if (hr.status != 200) {
+			logger.debug("Status was " + hr.status);
+			return;
+		}
+
+		if (hr.aborted) {
+			logger.debug("type or size check failed: " + hr.u.toString());
+			return;
+		}
+
+		if (!hr.hasBody()) {
+			logger.debug("Max size exceeded: " + hr.u.toString());
+			return;
+		}
+		manager.depositDoc(hr.u, hr);
+	}
+
+	/**
+	 * Send a redirect target to the master, encoded like the extractor's
+	 * links as it shares a message with others.
+	 */
+	private void sendTodo(URLInfo u) {
+		try {
+			manager.sendTodos(Collections.singletonList(URLEncoder.encode(
+					u.toString(), "UTF-8")));
+		} catch (UnsupportedEncodingException e) {
+		}
+	}
+
+	/**
+	 * Start the next request c is allowed to make. Returns a future that
+	 * completes once its response is in (the page is then handled on
+	 * CrawlManager's hand-off threads), or null if c had nothing to hand
+	 * out.
+	 */
+	CompletableFuture<?> fetchNext(CrawlDomain c) {
+		URLInfo todo = null;
+		try {
+			if ((todo = c.deqGet()) != null) {
+				return goGetPart(todo, c);
+			}
+			if (SINGLE_GET) {
+				if ((todo = c.deqConditionalGet()) != null) {
+					return goConditionalGetPart(todo, c);
+				}
+			} else if ((todo = c.deqHead()) != null) {
+				return goHeadPart(todo, c);
+			}
+			return null;
+		} catch (RuntimeException e) {
+			if (todo == null) {
+				throw e;
+			}
+			// Failed before the request went out (store lookup, client
+			// setup), so its callback will never give the slot back
+			logger.error("Could not start request for " + todo.toString(), e);
+			c.release();
+			manager.reportDoneLink(todo.toString());
+			return null;
+		}
+	}
+
 	@Override
 	public void run() {
 		logger.debug("Crawl Thread Running");
-		CrawlDomain c = null;
 		while (true) {
-			if (c != null) {
-				domainQ.offer(c);
-				c = null;
+			CrawlDomain c;
+			try {
+				// Don't start fetches whose pages we would have nowhere to put
+				manager.extractorQ.awaitNotFull();
+				AsyncHttpClient.getClient().awaitCapacity();
+				c = scheduler.take();
+			} catch (InterruptedException e) {
+				break;
 			}
 			try {
-				c = domainQ.poll();
-				if (c == null) {
-					try {
-						Thread.sleep(2 * 1000);
-					} catch (InterruptedException e) {
-					}
-					continue;
-				}
-				URLInfo todo;
-				if ((todo = c.deqGet()) != null) {
-					goGetPart(todo);
-				} else if ((todo = c.deqHead()) != null) {
-					goHeadPart(todo, c);
-				}
+				fetchNext(c);
 			} catch (Exception e) {
-				if (e instanceof InterruptedException) {
-					break;
-				}
 				logger.error("CrawlThead Main Catch", e);
+			} finally {
+				scheduler.requeue(c);
 			}
 		}
 	}
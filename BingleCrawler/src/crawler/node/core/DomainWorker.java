@@ -0,0 +1,45 @@
+package crawler.node.core;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.utils.AsyncHttpClient;
+
+/**
+ * Per-domain crawl mode: one thread per domain (virtual where the JVM has
+ * them) that sleeps until its domain may fetch and starts the request. The
+ * domain's HostThrottle decides how many of its requests may be out at
+ * once; awaitEligible() holds the worker back until one finishes. Takes the
+ * place of the shared scheduler queue and the fixed pool of crawl threads.
+ */
+public class DomainWorker implements Runnable {
+	private static final Logger logger = Logger.getLogger(DomainWorker.class);
+
+	private final CrawlDomain c;
+
+	public DomainWorker(CrawlDomain c) {
+		this.c = c;
+	}
+
+	@Override
+	public void run() {
+		CrawlManager manager = CrawlManager.getManager();
+		CrawlThread fetcher = new CrawlThread();
+		while (true) {
+			try {
+				c.awaitEligible();
+				if (c.isRetired()) {
+					break;
+				}
+				manager.extractorQ.awaitNotFull();
+				AsyncHttpClient.getClient().awaitCapacity();
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				fetcher.fetchNext(c);
+			} catch (Exception e) {
+				logger.error("DomainWorker Main Catch", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package crawler.node.core;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.utils.HttpClient.HttpResponse;
+
+/**
+ * Hand-off between fetching and link extraction, bounded by the bytes of
+ * page data it holds rather than by entry count. Producers block in put()
+ * while it is full, and CrawlThread waits in awaitNotFull() before starting
+ * new fetches, so a slow extraction stage throttles the fetchers instead of
+ * growing the heap.
+ */
+public class ExtractionQueue {
+	public static final long CAPACITY = Long.getLong(
+			"crawler.extractorQBytes", 256L * 1024 * 1024);
+	// Rough cost of a response besides its body (headers, URL, object)
+	private static final int OVERHEAD = 1024;
+	private static final int STATS_INTERVAL = 1000;
+
+	private static final Logger logger = Logger
+			.getLogger(ExtractionQueue.class);
+
+	private final long capacity;
+	private final LinkedList<Entry> q;
+	private final ReentrantLock lock;
+	private final Condition notFull;
+	private final Condition notEmpty;
+	private long bytes;
+
+	private long puts;
+	private long takes;
+	private long maxBytes;
+	private int maxDepth;
+	private long producerWaitNanos;
+	private long consumerWaitNanos;
+
+	public ExtractionQueue() {
+		this(CAPACITY);
+	}
+
+	public ExtractionQueue(long capacity) {
+		this.capacity = capacity;
+		q = new LinkedList<>();
+		lock = new ReentrantLock();
+		notFull = lock.newCondition();
+		notEmpty = lock.newCondition();
+	}
+
+	/**
+	 * A queued response with the size charged for it at put time, so take()
+	 * gives back exactly what put() added.
+	 */
+	private static class Entry {
+		final HttpResponse hr;
+		final long size;
+
+		Entry(HttpResponse hr, long size) {
+			this.hr = hr;
+			this.size = size;
+		}
+	}
+
+	private static long sizeOf(HttpResponse hr) {
+		return hr.getBufferedLength() + OVERHEAD;
+	}
+
+	/**
+	 * Waits while the queue is over capacity. A response larger than the
+	 * whole capacity is still accepted once the queue is empty.
+	 */
+	public void put(HttpResponse hr) throws InterruptedException {
+		long size = sizeOf(hr);
+		lock.lock();
+		try {
+			long start = System.nanoTime();
+			while (!q.isEmpty() && bytes + size > capacity) {
+				notFull.await();
+			}
+			producerWaitNanos += System.nanoTime() - start;
+			q.addLast(new Entry(hr, size));
+			bytes += size;
+			puts++;
+			maxBytes = Math.max(maxBytes, bytes);
+			maxDepth = Math.max(maxDepth, q.size());
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public HttpResponse take() throws InterruptedException {
+		Entry e;
+		boolean report;
+		lock.lock();
+		try {
+			long start = System.nanoTime();
+			while (q.isEmpty()) {
+				notEmpty.await();
+			}
+			consumerWaitNanos += System.nanoTime() - start;
+			e = q.removeFirst();
+			bytes -= e.size;
+			report = ++takes % STATS_INTERVAL == 0;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (report) {
+			logger.debug(toString());
+		}
+		return e.hr;
+	}
+
+	/**
+	 * Blocks a would-be producer until there is room again. Used to hold
+	 * back new fetches rather than their results.
+	 */
+	public void awaitNotFull() throws InterruptedException {
+		lock.lock();
+		try {
+			long start = System.nanoTime();
+			while (bytes >= capacity) {
+				notFull.await();
+			}
+			producerWaitNanos += System.nanoTime() - start;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return q.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long bytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public long getPuts() {
+		lock.lock();
+		try {
+			return puts;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getTakes() {
+		lock.lock();
+		try {
+			return takes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxDepth() {
+		lock.lock();
+		try {
+			return maxDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMaxBytes() {
+		lock.lock();
+		try {
+			return maxBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getProducerWaitMillis() {
+		lock.lock();
+		try {
+			return TimeUnit.NANOSECONDS.toMillis(producerWaitNanos);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getConsumerWaitMillis() {
+		lock.lock();
+		try {
+			return TimeUnit.NANOSECONDS.toMillis(consumerWaitNanos);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return "ExtractionQueue depth=" + q.size() + " bytes=" + bytes
+					+ "/" + capacity + " maxDepth=" + maxDepth + " maxBytes="
+					+ maxBytes + " puts=" + puts + " takes=" + takes
+					+ " producerWaitMs=" + getProducerWaitMillis()
+					+ " consumerWaitMs=" + getConsumerWaitMillis();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -1,12 +1,10 @@
 package crawler.node.core;
 
-import java.io.ByteArrayInputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.LinkedList;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
@@ -18,14 +16,18 @@ import org.w3c.tidy.Tidy;
 import crawler.node.utils.HttpClient.HttpResponse;
 import crawler.node.utils.URLInfo;
 
-public class ExtractorThread extends Thread {
+public class ExtractorThread implements Runnable {
 
 	private CrawlManager manager;
-	private ConcurrentLinkedQueue<HttpResponse> extractorQ;
+	private ExtractionQueue extractorQ;
 	private static NullOutputStream n1 = new NullOutputStream();
 	private static PrintWriter n = new PrintWriter(new NullOutputStream());
 	private static final Logger logger = Logger
 			.getLogger(ExtractorThread.class);
+	// The byte level HtmlLinkScanner is the default; set crawler.extractor
+	// to "tidy" to go back to building a JTidy DOM for every page
+	public static final boolean USE_TIDY = "tidy".equals(System.getProperty(
+			"crawler.extractor", "scanner"));
 
 	private static class NullOutputStream extends OutputStream {
 		@Override
@@ -51,12 +53,45 @@ public class ExtractorThread extends Thread {
 	}
 
 	private static LinkedList<String> extract(HttpResponse hr) {
+		if (hr.getBody() == null) {
+			// Compressed page that would not decode
+			return new LinkedList<>();
+		}
+		if (!USE_TIDY) {
+			try {
+				return scan(hr);
+			} catch (RuntimeException e) {
+				logger.debug("Scanner failed, falling back to JTidy", e);
+			}
+		}
+		return tidyExtract(hr);
+	}
+
+	private static LinkedList<String> scan(HttpResponse hr) {
+		LinkedList<String> urlQ = new LinkedList<>();
+		HtmlLinkScanner s = HtmlLinkScanner.scan(hr.getBody());
+		URLInfo base = baseOf(hr.u, s.getBase());
+		for (String url : s.getLinks()) {
+			addLink(urlQ, base, url);
+		}
+		return urlQ;
+	}
+
+	private static LinkedList<String> tidyExtract(HttpResponse hr) {
 		LinkedList<String> urlQ = new LinkedList<>();
 		Tidy t = new Tidy();
 		t.setErrout(n);
 		t.setForceOutput(true);
 		try {
-			Document d = t.parseDOM(new ByteArrayInputStream(hr.data), n1);
+			Document d = t.parseDOM(hr.getBodyStream(), n1);
+			URLInfo base = hr.u;
+			NodeList b = d.getElementsByTagName("base");
+			if (b.getLength() > 0) {
+				Node href = b.item(0).getAttributes().getNamedItem("href");
+				if (href != null) {
+					base = baseOf(hr.u, href.getNodeValue());
+				}
+			}
 			NodeList n = d.getElementsByTagName("a");
 			for (int i = 0; i < n.getLength(); i++) {
 				NamedNodeMap attrs = n.item(i).getAttributes();
@@ -65,32 +100,16 @@ public class ExtractorThread extends Thread {
 					continue;
 				}
 				Node lang = attrs.getNamedItem("lang");
-				if (lang != null && !lang.equals("en")) {
+				if (lang != null
+						&& !HtmlLinkScanner.isEnglish(lang.getNodeValue())) {
 					continue;
 				}
-
-				String url = href.getNodeValue();
-				String urllower = url.toLowerCase();
-
-				if (url.startsWith("#") || urllower.startsWith("javascript:")
-						|| urllower.startsWith("mailto:")) {
+				Node rel = attrs.getNamedItem("rel");
+				if (rel != null
+						&& rel.getNodeValue().toLowerCase().contains("nofollow")) {
 					continue;
 				}
-
-				logger.debug("URL IS: " + url);
-				if (url.startsWith("http://") || url.startsWith("https://")) {
-					urlQ.addLast(url.substring(0, 7)
-							+ URLEncoder.encode(url.substring(7), "UTF-8"));
-				} else if (url.startsWith("//")) {
-					urlQ.addLast((hr.u.isSecure() ? "https:" : "http:")
-							+ URLEncoder.encode(url, "UTF-8"));
-				} else if (url.startsWith("/")) {
-					urlQ.addLast(URLInfo.withFP(hr.u,
-							URLEncoder.encode(url, "UTF-8")).toString());
-				} else {
-					urlQ.addLast(URLInfo.appendFP(hr.u,
-							URLEncoder.encode(url, "UTF-8")).toString());
-				}
+				addLink(urlQ, base, href.getNodeValue());
 			}
 		} catch (Exception e) {
 			logger.debug(e);
@@ -98,21 +117,75 @@ public class ExtractorThread extends Thread {
 		return urlQ;
 	}
 
+	/**
+	 * The URL relative links are resolved against: an absolute base href
+	 * if the page has one, else the page itself.
+	 */
+	private static URLInfo baseOf(URLInfo page, String base) {
+		if (base == null || !(base.startsWith("http://")
+				|| base.startsWith("https://"))) {
+			return page;
+		}
+		try {
+			return new URLInfo(base);
+		} catch (IllegalArgumentException e) {
+			return page;
+		}
+	}
+
+	private static void addLink(LinkedList<String> urlQ, URLInfo base,
+			String url) {
+		String urllower = url.toLowerCase();
+
+		if (url.startsWith("#") || urllower.startsWith("javascript:")
+				|| urllower.startsWith("mailto:")) {
+			return;
+		}
+
+		logger.debug("URL IS: " + url);
+		try {
+			if (url.startsWith("http://") || url.startsWith("https://")) {
+				urlQ.addLast(url.substring(0, 7)
+						+ URLEncoder.encode(url.substring(7), "UTF-8"));
+			} else if (url.startsWith("//")) {
+				urlQ.addLast((base.isSecure() ? "https:" : "http:")
+						+ URLEncoder.encode(url, "UTF-8"));
+			} else if (url.startsWith("/")) {
+				urlQ.addLast(URLInfo.withFP(base,
+						URLEncoder.encode(url, "UTF-8")).toString());
+			} else {
+				urlQ.addLast(URLInfo.appendFP(base,
+						URLEncoder.encode(url, "UTF-8")).toString());
+			}
+		} catch (UnsupportedEncodingException e) {
+		}
+	}
+
+	/**
+	 * Extract the links from one page, release it and pass the links on.
+	 */
+	void process(HttpResponse hr) {
+		LinkedList<String> links;
+		try {
+			links = extract(hr);
+		} finally {
+			hr.release();
+		}
+		manager.sendTodos(links);
+	}
+
 	@Override
 	public void run() {
 		logger.debug("Extractor thread starting");
 		while (true) {
 			try {
-				HttpResponse hr = extractorQ.poll();
-				if (hr == null) {
-					try {
-						Thread.sleep(2 * 1000);
-					} catch (InterruptedException e) {
-					}
-					continue;
+				HttpResponse hr;
+				try {
+					hr = extractorQ.take();
+				} catch (InterruptedException e) {
+					break;
 				}
-				LinkedList<String> links = extract(hr);
-				manager.sendTodos(links);
+				process(hr);
 			} catch (Exception e) {
 				continue;
 			}
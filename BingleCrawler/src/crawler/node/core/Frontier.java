@@ -0,0 +1,324 @@
+package crawler.node.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.utils.URLInfo;
+import crawler.node.utils.UrlHash;
+
+/**
+ * The paths a domain still has to fetch, best first. A path's score comes
+ * from how deep it sits, how many times it has been linked to while
+ * waiting, its sitemap priority and lastmod if a sitemap listed it, and the
+ * crawler.scorer prior if there is one. At most crawler.frontierMemory
+ * paths are held in memory; past that the lowest scoring half is appended
+ * to a spill file, and read back (best first) once memory runs dry. So the
+ * order is only approximate across a spill, and spilled paths stop
+ * collecting in-links.
+ */
+public class Frontier {
+	private static final Logger logger = Logger.getLogger(Frontier.class);
+
+	public static final int MAX_IN_MEMORY = Integer.getInteger(
+			"crawler.frontierMemory", 10000);
+	public static final File SPILL_DIR = new File(System.getProperty(
+			"crawler.spillDir", new File(System.getProperty("java.io.tmpdir"),
+					"bingle-frontier").getPath()));
+	public static final double NOT_LISTED = -1;
+
+	static final double DEPTH_WEIGHT = 0.25;
+	static final double QUERY_PENALTY = 0.5;
+	static final double INLINK_WEIGHT = 0.5;
+	static final double FRESHNESS_WEIGHT = 0.5;
+	static final long FRESHNESS_DAYS = 365;
+
+	private static final UrlScorer scorer = loadScorer();
+
+	private static UrlScorer loadScorer() {
+		String name = System.getProperty("crawler.scorer");
+		if (name == null || name.isEmpty()) {
+			return null;
+		}
+		try {
+			return (UrlScorer) Class.forName(name).newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			logger.error("Could not load scorer " + name, e);
+			return null;
+		}
+	}
+
+	private static class Entry implements Comparable<Entry> {
+		final String path;
+		final double base;
+		final long seq;
+		int inLinks;
+		double score;
+
+		Entry(String path, double base, int inLinks, long seq) {
+			this.path = path;
+			this.base = base;
+			this.inLinks = inLinks;
+			this.seq = seq;
+			rescore();
+		}
+
+		void rescore() {
+			score = base + INLINK_WEIGHT * Math.log1p(inLinks);
+		}
+
+		/**
+		 * Best score first, then first come first served.
+		 */
+		@Override
+		public int compareTo(Entry o) {
+			int c = Double.compare(o.score, score);
+			return c != 0 ? c : Long.compare(seq, o.seq);
+		}
+	}
+
+	private final URLInfo domain;
+	private final TreeSet<Entry> queue;
+	private final HashMap<String, Entry> byPath;
+	private long seq;
+	private File spill;
+	private volatile int spilled;
+	private volatile int inMemory;
+
+	public Frontier(URLInfo domain) {
+		this.domain = domain;
+		queue = new TreeSet<>();
+		byPath = new HashMap<>();
+	}
+
+	public boolean isEmpty() {
+		return inMemory == 0 && spilled == 0;
+	}
+
+	public int size() {
+		return inMemory + spilled;
+	}
+
+	/**
+	 * Queue a path not seen before. sitemapPriority is NOT_LISTED and
+	 * lastModified -1 unless it came from a sitemap.
+	 */
+	public synchronized void add(String path, double sitemapPriority,
+			long lastModified) {
+		if (byPath.containsKey(path)) {
+			return;
+		}
+		double base = score(path, sitemapPriority, lastModified,
+				System.currentTimeMillis());
+		if (scorer != null) {
+			base += scorer.prior(domain, path);
+		}
+		Entry e = new Entry(path, base, 0, seq++);
+		queue.add(e);
+		byPath.put(path, e);
+		if (queue.size() > MAX_IN_MEMORY) {
+			spillLowest();
+		}
+		inMemory = queue.size();
+	}
+
+	/**
+	 * Another link to path turned up; moves it up if it is still waiting
+	 * in memory.
+	 */
+	public synchronized void addInLink(String path) {
+		Entry e = byPath.get(path);
+		if (e == null) {
+			return;
+		}
+		queue.remove(e);
+		e.inLinks++;
+		e.rescore();
+		queue.add(e);
+	}
+
+	/**
+	 * The best path waiting, or null.
+	 */
+	public synchronized String poll() {
+		if (queue.isEmpty() && spilled > 0) {
+			refill();
+		}
+		Entry e = queue.pollFirst();
+		if (e == null) {
+			return null;
+		}
+		byPath.remove(e.path);
+		inMemory = queue.size();
+		return e.path;
+	}
+
+	/**
+	 * Score from the path alone (plus sitemap data): shallow paths without
+	 * a query string first, then a bonus for being in a sitemap, by the
+	 * priority given there, and for having changed recently.
+	 */
+	static double score(String path, double sitemapPriority,
+			long lastModified, long now) {
+		int q = path.indexOf('?');
+		int depth = 0;
+		int end = q < 0 ? path.length() : q;
+		for (int i = 1; i < end; i++) {
+			if (path.charAt(i) == '/' && i < end - 1) {
+				depth++;
+			}
+		}
+		double s = -DEPTH_WEIGHT * depth;
+		if (q >= 0) {
+			s -= QUERY_PENALTY;
+		}
+		if (sitemapPriority != NOT_LISTED) {
+			s += sitemapPriority;
+		}
+		if (lastModified > 0) {
+			double days = (now - lastModified) / (24 * 3600 * 1000.0);
+			s += FRESHNESS_WEIGHT
+					* Math.max(0, 1 - Math.max(0, days) / FRESHNESS_DAYS);
+		}
+		return s;
+	}
+
+	// Spill file lines are "base score \t inLinks \t path"
+
+	private void spillLowest() {
+		int count = Math.max(1, MAX_IN_MEMORY / 2);
+		Writer w = null;
+		try {
+			w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+					spillFile(), true), StandardCharsets.UTF_8));
+			for (int i = 0; i < count && !queue.isEmpty(); i++) {
+				Entry e = queue.pollLast();
+				byPath.remove(e.path);
+				write(w, e);
+				spilled++;
+			}
+		} catch (IOException e) {
+			logger.error("Frontier spill for " + domain.toString()
+					+ " failed, dropping the lowest paths", e);
+			while (queue.size() > MAX_IN_MEMORY) {
+				byPath.remove(queue.pollLast().path);
+			}
+		} finally {
+			close(w);
+		}
+	}
+
+	/**
+	 * Read back the best MAX_IN_MEMORY / 2 spilled paths and rewrite the
+	 * spill file without them.
+	 */
+	private void refill() {
+		int count = Math.max(1, MAX_IN_MEMORY / 2);
+		PriorityQueue<Entry> best = new PriorityQueue<>(count + 1,
+				Collections.reverseOrder());
+		File rest = new File(spill.getPath() + ".tmp");
+		BufferedReader r = null;
+		Writer w = null;
+		int left = 0;
+		try {
+			r = new BufferedReader(new InputStreamReader(new FileInputStream(
+					spill), StandardCharsets.UTF_8));
+			w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+					rest), StandardCharsets.UTF_8));
+			String line;
+			while ((line = r.readLine()) != null) {
+				Entry e = read(line);
+				if (e == null) {
+					continue;
+				}
+				best.add(e);
+				if (best.size() > count) {
+					// The worst of what we hold goes back to disk
+					write(w, best.poll());
+					left++;
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Frontier refill for " + domain.toString()
+					+ " failed, the rest of its spilled paths are lost", e);
+			left = 0;
+		} finally {
+			close(r);
+			close(w);
+		}
+		for (Entry e : best) {
+			queue.add(e);
+			byPath.put(e.path, e);
+		}
+		spilled = left;
+		if (left > 0 && rest.renameTo(spill)) {
+			return;
+		}
+		if (left > 0) {
+			logger.error("Could not replace " + spill.getPath());
+			spilled = 0;
+		}
+		rest.delete();
+		spill.delete();
+	}
+
+	private File spillFile() throws IOException {
+		if (spill == null) {
+			if (!SPILL_DIR.isDirectory() && !SPILL_DIR.mkdirs()) {
+				throw new IOException("Cannot create " + SPILL_DIR.getPath());
+			}
+			spill = new File(SPILL_DIR, domain.getHostName() + "-"
+					+ Long.toHexString(UrlHash.hash64(domain.toString()))
+					+ ".spill");
+			spill.delete();
+		}
+		return spill;
+	}
+
+	private static void write(Writer w, Entry e) throws IOException {
+		w.write(Double.toString(e.base));
+		w.write('\t');
+		w.write(Integer.toString(e.inLinks));
+		w.write('\t');
+		w.write(e.path);
+		w.write('\n');
+	}
+
+	private Entry read(String line) {
+		int t1 = line.indexOf('\t');
+		int t2 = line.indexOf('\t', t1 + 1);
+		if (t1 < 0 || t2 < 0) {
+			return null;
+		}
+		try {
+			return new Entry(line.substring(t2 + 1), Double.parseDouble(line
+					.substring(0, t1)), Integer.parseInt(line.substring(
+					t1 + 1, t2)), seq++);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static void close(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package crawler.node.core;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.utils.HttpClient;
+import crawler.node.utils.HttpClient.HttpResponse;
+import crawler.node.utils.ServerUtils;
+
+/**
+ * How hard we may hit one host: the gap between request starts and how
+ * many requests may be outstanding at once. Adjusted AIMD style from what
+ * the host's responses tell us. A quick answer earns a little more
+ * (interval down a step, concurrency up by about one per window of
+ * requests); a slow answer costs a little; a timeout, 429, 503 or 504 cuts
+ * concurrency in half and doubles the interval, and a Retry-After is
+ * honoured outright. The interval never goes below the robots.txt
+ * Crawl-delay, and a host that sets one gets one request at a time.
+ */
+public class HostThrottle {
+	private static final Logger logger = Logger.getLogger(HostThrottle.class);
+
+	public static final long START_INTERVAL = Long.getLong(
+			"crawler.hostInterval", 1000);
+	public static final long MIN_INTERVAL = Long.getLong(
+			"crawler.minHostInterval", 250);
+	public static final long MAX_INTERVAL = 60 * 1000;
+	public static final int MAX_CONCURRENCY = Integer.getInteger(
+			"crawler.maxHostConcurrency", 4);
+	// Responses slower than this count against the host
+	public static final long SLOW_MILLIS = Long.getLong("crawler.slowHostMs",
+			2000);
+	public static final long STEP = 50;
+	public static final long MAX_RETRY_AFTER = 10 * 60 * 1000;
+	private static final double ALPHA = 0.2;
+
+	private final String host;
+	private volatile long interval;
+	private volatile long robotsDelay;
+	private volatile long notBefore;
+	private double concurrency;
+	private volatile int maxInFlight;
+	private double meanMillis = -1;
+
+	public HostThrottle(String host) {
+		this.host = host;
+		interval = Math.max(START_INTERVAL, MIN_INTERVAL);
+		concurrency = 1;
+		maxInFlight = 1;
+	}
+
+	/**
+	 * Gap (ms) to leave between the starts of two requests.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Time (ms) before which no request should start, from a Retry-After,
+	 * or 0.
+	 */
+	public long getNotBefore() {
+		return notBefore;
+	}
+
+	/**
+	 * Mean response time in ms (exponentially weighted), -1 before the
+	 * first response.
+	 */
+	public synchronized double getMeanMillis() {
+		return meanMillis;
+	}
+
+	/**
+	 * The robots.txt Crawl-delay in ms, the floor for the interval.
+	 */
+	public synchronized void setRobotsDelay(long ms) {
+		robotsDelay = Math.max(0, ms);
+		setInterval(interval);
+		setConcurrency(concurrency);
+	}
+
+	/**
+	 * Feed back one completed request: its response (null if it failed
+	 * with t) and how long it took.
+	 */
+	public synchronized void observe(HttpResponse hr, Throwable t,
+			long nanos) {
+		long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+		if (t != null || hr == null) {
+			overloaded("failed after " + ms + "ms");
+			return;
+		}
+		if (hr.status == 429 || hr.status == 503 || hr.status == 504) {
+			overloaded("status " + hr.status);
+			long retryAfter = retryAfter(HttpClient.firstHeader(hr.headers,
+					"Retry-After"));
+			if (retryAfter > 0) {
+				notBefore = System.currentTimeMillis()
+						+ Math.min(retryAfter, MAX_RETRY_AFTER);
+			}
+			return;
+		}
+
+		meanMillis = meanMillis < 0 ? ms : meanMillis + ALPHA
+				* (ms - meanMillis);
+		if (ms > SLOW_MILLIS) {
+			// Back off gently: one step, and a slot if we had more than one
+			setInterval(interval + STEP);
+			setConcurrency(concurrency - 1);
+		} else if (meanMillis <= SLOW_MILLIS) {
+			setInterval(interval - STEP);
+			setConcurrency(concurrency + 1 / concurrency);
+		}
+	}
+
+	private void overloaded(String why) {
+		setInterval(Math.max(interval * 2, 1000));
+		setConcurrency(concurrency / 2);
+		logger.debug(host + " " + why + ": interval " + interval
+				+ "ms, concurrency " + maxInFlight);
+	}
+
+	private void setInterval(long ms) {
+		interval = Math.max(robotsDelay,
+				Math.min(MAX_INTERVAL, Math.max(ms, MIN_INTERVAL)));
+	}
+
+	private void setConcurrency(double c) {
+		concurrency = Math.min(MAX_CONCURRENCY, Math.max(1, c));
+		maxInFlight = robotsDelay > 0 ? 1 : (int) concurrency;
+	}
+
+	/**
+	 * Retry-After as ms from now: either delta seconds or an HTTP date. 0
+	 * if absent or unreadable.
+	 */
+	static long retryAfter(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return 0;
+		}
+		value = value.trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException e) {
+		}
+		Date d = ServerUtils.dateFromString(value);
+		return d == null ? 0 : Math.max(0,
+				d.getTime() - System.currentTimeMillis());
+	}
+
+	@Override
+	public synchronized String toString() {
+		return host + " interval=" + interval + "ms maxInFlight="
+				+ maxInFlight + " mean=" + Math.round(meanMillis) + "ms";
+	}
+}
@@ -0,0 +1,417 @@
+package crawler.node.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single pass link scanner over the raw bytes of a page. Walks the tags
+ * without building a tree, skipping comments, script and style contents,
+ * and only turns the attributes it needs into Strings: href on a and area,
+ * rel and lang on those, base href, and meta robots. Everything else about
+ * the page is ignored.
+ */
+public class HtmlLinkScanner {
+	private static final byte[] COMMENT_END = { '-', '-', '>' };
+	private static final byte[] SCRIPT_END = bytes("</script");
+	private static final byte[] STYLE_END = bytes("</style");
+
+	private static final byte[] A = bytes("a");
+	private static final byte[] AREA = bytes("area");
+	private static final byte[] BASE = bytes("base");
+	private static final byte[] META = bytes("meta");
+	private static final byte[] SCRIPT = bytes("script");
+	private static final byte[] STYLE = bytes("style");
+
+	private static final byte[] HREF = bytes("href");
+	private static final byte[] REL = bytes("rel");
+	private static final byte[] LANG = bytes("lang");
+	private static final byte[] NAME = bytes("name");
+	private static final byte[] CONTENT = bytes("content");
+
+	private static final int OTHER = 0, LINK = 1, BASE_TAG = 2, META_TAG = 3,
+			SCRIPT_TAG = 4, STYLE_TAG = 5;
+
+	private final ByteBuffer b;
+	private final int end;
+	private int pos;
+	private byte[] scratch;
+
+	private final ArrayList<String> links;
+	private String base;
+	private boolean noFollow;
+
+	// Attribute value ranges of the tag being read, -1 if absent
+	private int hrefStart, hrefEnd, relStart, relEnd, langStart, langEnd,
+			nameStart, nameEnd, contentStart, contentEnd;
+
+	private HtmlLinkScanner(ByteBuffer page) {
+		b = page;
+		pos = page.position();
+		end = page.limit();
+		links = new ArrayList<>();
+	}
+
+	/**
+	 * Scan the remaining bytes of page. The buffer's position is not
+	 * changed.
+	 */
+	public static HtmlLinkScanner scan(ByteBuffer page) {
+		HtmlLinkScanner s = new HtmlLinkScanner(page);
+		s.run();
+		if (s.noFollow) {
+			s.links.clear();
+		}
+		return s;
+	}
+
+	/**
+	 * The href values, entity decoded but otherwise as written, in page
+	 * order. Links marked rel=nofollow or with a non-English lang are left
+	 * out, as is everything if the page has a robots nofollow meta tag.
+	 */
+	public List<String> getLinks() {
+		return links;
+	}
+
+	/**
+	 * The first base href on the page, or null.
+	 */
+	public String getBase() {
+		return base;
+	}
+
+	public boolean isNoFollow() {
+		return noFollow;
+	}
+
+	private void run() {
+		while ((pos = indexOf((byte) '<', pos)) >= 0) {
+			pos++;
+			if (pos >= end) {
+				return;
+			}
+			byte c = b.get(pos);
+			if (c == '!') {
+				if (pos + 2 < end && b.get(pos + 1) == '-'
+						&& b.get(pos + 2) == '-') {
+					pos = skipPast(COMMENT_END, pos + 3, false);
+				} else {
+					pos = skipPast((byte) '>', pos);
+				}
+				continue;
+			}
+			if (c == '/' || c == '?') {
+				pos = skipPast((byte) '>', pos);
+				continue;
+			}
+			if (!isLetter(c)) {
+				continue;
+			}
+
+			int start = pos;
+			while (pos < end && isNameChar(b.get(pos))) {
+				pos++;
+			}
+			int tag = tagOf(start, pos);
+			readAttributes(tag);
+
+			switch (tag) {
+			case LINK:
+				addLink();
+				break;
+			case BASE_TAG:
+				if (base == null && hrefStart >= 0) {
+					base = value(hrefStart, hrefEnd).trim();
+				}
+				break;
+			case META_TAG:
+				if (nameStart >= 0 && contentStart >= 0
+						&& value(nameStart, nameEnd).trim()
+								.equalsIgnoreCase("robots")
+						&& hasToken(value(contentStart, contentEnd),
+								"nofollow", ',')) {
+					noFollow = true;
+				}
+				break;
+			case SCRIPT_TAG:
+				pos = skipPast(SCRIPT_END, pos, true);
+				break;
+			case STYLE_TAG:
+				pos = skipPast(STYLE_END, pos, true);
+				break;
+			}
+		}
+	}
+
+	private void addLink() {
+		if (hrefStart < 0) {
+			return;
+		}
+		if (relStart >= 0 && hasToken(value(relStart, relEnd), "nofollow", ' ')) {
+			return;
+		}
+		if (langStart >= 0 && !isEnglish(value(langStart, langEnd))) {
+			return;
+		}
+		String href = value(hrefStart, hrefEnd).trim();
+		if (!href.isEmpty()) {
+			links.add(href);
+		}
+	}
+
+	static boolean isEnglish(String lang) {
+		lang = lang.trim().toLowerCase();
+		return lang.isEmpty() || lang.equals("en") || lang.startsWith("en-");
+	}
+
+	private static boolean hasToken(String list, String token, char sep) {
+		int from = 0;
+		while (from <= list.length()) {
+			int to = list.indexOf(sep, from);
+			if (to < 0) {
+				to = list.length();
+			}
+			if (list.substring(from, to).trim().equalsIgnoreCase(token)) {
+				return true;
+			}
+			from = to + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads attributes up to and including the closing '>', remembering
+	 * where the values we care about are. Attributes of other tags are
+	 * skipped without creating any objects.
+	 */
+	private void readAttributes(int tag) {
+		hrefStart = relStart = langStart = nameStart = contentStart = -1;
+		while (pos < end) {
+			byte c = b.get(pos);
+			if (c == '>') {
+				pos++;
+				return;
+			}
+			if (isSpace(c) || c == '/') {
+				pos++;
+				continue;
+			}
+			int attrStart = pos;
+			while (pos < end) {
+				c = b.get(pos);
+				if (isSpace(c) || c == '=' || c == '>' || c == '/') {
+					break;
+				}
+				pos++;
+			}
+			int attrEnd = pos;
+			if (attrEnd == attrStart) {
+				// A stray quote or similar
+				pos++;
+				continue;
+			}
+			while (pos < end && isSpace(b.get(pos))) {
+				pos++;
+			}
+			if (pos >= end || b.get(pos) != '=') {
+				continue;
+			}
+			pos++;
+			while (pos < end && isSpace(b.get(pos))) {
+				pos++;
+			}
+			if (pos >= end) {
+				return;
+			}
+			int valueStart, valueEnd;
+			c = b.get(pos);
+			if (c == '"' || c == '\'') {
+				valueStart = pos + 1;
+				valueEnd = indexOf(c, valueStart);
+				if (valueEnd < 0) {
+					valueEnd = end;
+				}
+				pos = Math.min(end, valueEnd + 1);
+			} else {
+				valueStart = pos;
+				while (pos < end && !isSpace(b.get(pos)) && b.get(pos) != '>') {
+					pos++;
+				}
+				valueEnd = pos;
+			}
+			if (tag == OTHER) {
+				continue;
+			}
+			if (equalsIgnoreCase(attrStart, attrEnd, HREF)) {
+				hrefStart = valueStart;
+				hrefEnd = valueEnd;
+			} else if (equalsIgnoreCase(attrStart, attrEnd, REL)) {
+				relStart = valueStart;
+				relEnd = valueEnd;
+			} else if (equalsIgnoreCase(attrStart, attrEnd, LANG)) {
+				langStart = valueStart;
+				langEnd = valueEnd;
+			} else if (equalsIgnoreCase(attrStart, attrEnd, NAME)) {
+				nameStart = valueStart;
+				nameEnd = valueEnd;
+			} else if (equalsIgnoreCase(attrStart, attrEnd, CONTENT)) {
+				contentStart = valueStart;
+				contentEnd = valueEnd;
+			}
+		}
+	}
+
+	private int tagOf(int start, int stop) {
+		if (equalsIgnoreCase(start, stop, A)
+				|| equalsIgnoreCase(start, stop, AREA)) {
+			return LINK;
+		}
+		if (equalsIgnoreCase(start, stop, BASE)) {
+			return BASE_TAG;
+		}
+		if (equalsIgnoreCase(start, stop, META)) {
+			return META_TAG;
+		}
+		if (equalsIgnoreCase(start, stop, SCRIPT)) {
+			return SCRIPT_TAG;
+		}
+		if (equalsIgnoreCase(start, stop, STYLE)) {
+			return STYLE_TAG;
+		}
+		return OTHER;
+	}
+
+	private String value(int start, int stop) {
+		int len = stop - start;
+		String s;
+		if (b.hasArray()) {
+			s = new String(b.array(), b.arrayOffset() + start, len,
+					StandardCharsets.UTF_8);
+		} else {
+			if (scratch == null || scratch.length < len) {
+				scratch = new byte[Math.max(len, 256)];
+			}
+			for (int i = 0; i < len; i++) {
+				scratch[i] = b.get(start + i);
+			}
+			s = new String(scratch, 0, len, StandardCharsets.UTF_8);
+		}
+		return s.indexOf('&') < 0 ? s : decodeEntities(s);
+	}
+
+	/**
+	 * Decodes the character references that show up in URLs: &amp;amp; and
+	 * friends and numeric references. Anything else is left as is.
+	 */
+	static String decodeEntities(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		int i = 0;
+		while (i < s.length()) {
+			char c = s.charAt(i);
+			int semi;
+			if (c != '&' || (semi = s.indexOf(';', i)) < 0 || semi - i > 10) {
+				sb.append(c);
+				i++;
+				continue;
+			}
+			String ent = s.substring(i + 1, semi);
+			String rep = null;
+			if (ent.equals("amp")) {
+				rep = "&";
+			} else if (ent.equals("lt")) {
+				rep = "<";
+			} else if (ent.equals("gt")) {
+				rep = ">";
+			} else if (ent.equals("quot")) {
+				rep = "\"";
+			} else if (ent.equals("apos")) {
+				rep = "'";
+			} else if (ent.startsWith("#")) {
+				try {
+					int cp = ent.startsWith("#x") || ent.startsWith("#X") ? Integer
+							.parseInt(ent.substring(2), 16) : Integer
+							.parseInt(ent.substring(1));
+					rep = new String(Character.toChars(cp));
+				} catch (IllegalArgumentException e) {
+				}
+			}
+			if (rep == null) {
+				sb.append(c);
+				i++;
+			} else {
+				sb.append(rep);
+				i = semi + 1;
+			}
+		}
+		return sb.toString();
+	}
+
+	private int indexOf(byte c, int from) {
+		for (int i = from; i < end; i++) {
+			if (b.get(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int skipPast(byte c, int from) {
+		int i = indexOf(c, from);
+		return i < 0 ? end : i + 1;
+	}
+
+	/**
+	 * Position just after the next occurrence of pattern (lower case), or
+	 * the end of the page.
+	 */
+	private int skipPast(byte[] pattern, int from, boolean ignoreCase) {
+		int last = end - pattern.length;
+		outer: for (int i = from; i <= last; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				byte c = b.get(i + j);
+				if (ignoreCase) {
+					c = lower(c);
+				}
+				if (c != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i + pattern.length;
+		}
+		return end;
+	}
+
+	private boolean equalsIgnoreCase(int start, int stop, byte[] lowerName) {
+		if (stop - start != lowerName.length) {
+			return false;
+		}
+		for (int i = 0; i < lowerName.length; i++) {
+			if (lower(b.get(start + i)) != lowerName[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte lower(byte c) {
+		return c >= 'A' && c <= 'Z' ? (byte) (c + ('a' - 'A')) : c;
+	}
+
+	private static boolean isLetter(byte c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isNameChar(byte c) {
+		return isLetter(c) || (c >= '0' && c <= '9') || c == '-' || c == ':';
+	}
+
+	private static boolean isSpace(byte c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -1,15 +1,297 @@
 package crawler.node.core;
 
-import java.util.Collection;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.utils.HttpClient;
 import crawler.node.utils.URLInfo;
 
+/**
+ * Sitemap ingestion. Sitemaps and sitemap indexes are parsed with StAX
+ * straight off the connection, so their size only costs us the entries we
+ * keep. Gzipped sitemaps are recognised by their magic number whatever the
+ * server says they are, and plain text sitemaps (one URL per line) are
+ * accepted too.
+ */
 public class LinkExtractor {
+	private static final Logger logger = Logger.getLogger(LinkExtractor.class);
+
+	// Limits from sitemaps.org, plus a cap on what one domain can load
+	public static final int MAX_URLS = 50000;
+	public static final long MAX_BYTES = 50L * 1024 * 1024;
+	public static final int MAX_SITEMAPS = 100;
+	public static final int MAX_DEPTH = 2;
+	public static final double DEFAULT_PRIORITY = 0.5;
+
+	private static final XMLInputFactory xml = XMLInputFactory.newInstance();
+	static {
+		xml.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		xml.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				false);
+		xml.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+	}
+
+	public static class SitemapEntry implements Comparable<SitemapEntry> {
+		public final String loc;
+		public final long lastModified; // ms, -1 if not given
+		public final double priority;
+
+		public SitemapEntry(String loc, long lastModified, double priority) {
+			this.loc = loc;
+			this.lastModified = lastModified;
+			this.priority = priority;
+		}
+
+		/**
+		 * Higher priority first, then most recently modified first.
+		 */
+		@Override
+		public int compareTo(SitemapEntry o) {
+			int c = Double.compare(o.priority, priority);
+			return c != 0 ? c : Long.compare(o.lastModified, lastModified);
+		}
+
+		@Override
+		public String toString() {
+			return loc + " " + priority + " " + lastModified;
+		}
+	}
+
+	/**
+	 * All page entries reachable from the sitemap (or sitemap index) at
+	 * sitemap, best first. Child sitemaps of an index are followed up to
+	 * MAX_DEPTH, and at most MAX_URLS entries are returned.
+	 */
+	public static List<SitemapEntry> siteMapProcess(URLInfo sitemap) {
+		List<SitemapEntry> entries = new ArrayList<>();
+		process(sitemap, entries, new int[1], 0);
+		Collections.sort(entries);
+		return entries;
+	}
+
+	private static void process(URLInfo sitemap, List<SitemapEntry> entries,
+			int[] fetched, int depth) {
+		if (depth >= MAX_DEPTH || fetched[0]++ >= MAX_SITEMAPS
+				|| entries.size() >= MAX_URLS) {
+			return;
+		}
+		logger.debug("Sitemap: " + sitemap.toString());
+		List<String> children = new ArrayList<>();
+		InputStream in = null;
+		try {
+			in = open(sitemap);
+			parse(in, entries, children);
+		} catch (HttpClient.HttpClientException | IOException
+				| XMLStreamException e) {
+			// Keep whatever we got before the problem
+			logger.debug("Sitemap " + sitemap.toString() + ": " + e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		for (String child : children) {
+			try {
+				process(new URLInfo(child), entries, fetched, depth + 1);
+			} catch (IllegalArgumentException e) {
+				logger.debug("Bad sitemap url " + child);
+			}
+		}
+	}
+
+	private static InputStream open(URLInfo sitemap) throws IOException {
+		BufferedInputStream in = new BufferedInputStream(new Limited(
+				HttpClient.openStream(sitemap), MAX_BYTES));
+		in.mark(2);
+		int b0 = in.read();
+		int b1 = in.read();
+		in.reset();
+		if (b0 == 0x1f && b1 == 0x8b) {
+			return new BufferedInputStream(new Limited(
+					new GZIPInputStream(in), MAX_BYTES));
+		}
+		return in;
+	}
 
-	public static Collection<? extends String> siteMapProcess(URLInfo withFP) {
-		// TODO Auto-generated method stub
-		return Collections.emptyList();
+	/**
+	 * Reads one sitemap, adding page entries to entries and the locations
+	 * of child sitemaps (if it is an index) to children.
+	 */
+	static void parse(InputStream in, List<SitemapEntry> entries,
+			List<String> children) throws IOException, XMLStreamException {
+		in = in.markSupported() ? in : new BufferedInputStream(in);
+		in.mark(256);
+		int c;
+		int n = 0;
+		do {
+			c = in.read();
+		} while (++n < 256
+				&& (c == ' ' || c == '\t' || c == '\r' || c == '\n'
+						|| c == 0xef || c == 0xbb || c == 0xbf));
+		in.reset();
+		if (c != '<') {
+			parseText(in, entries);
+			return;
+		}
+
+		XMLStreamReader r = xml.createXMLStreamReader(in);
+		try {
+			String loc = null, lastmod = null, priority = null;
+			StringBuilder text = new StringBuilder();
+			while (r.hasNext() && entries.size() < MAX_URLS) {
+				switch (r.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					text.setLength(0);
+					if (isElement(r, "url") || isElement(r, "sitemap")) {
+						loc = lastmod = priority = null;
+					}
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+					text.append(r.getTextCharacters(), r.getTextStart(),
+							r.getTextLength());
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if (isElement(r, "loc")) {
+						loc = text.toString().trim();
+					} else if (isElement(r, "lastmod")) {
+						lastmod = text.toString().trim();
+					} else if (isElement(r, "priority")) {
+						priority = text.toString().trim();
+					} else if (isElement(r, "url")) {
+						if (loc != null && !loc.isEmpty()) {
+							entries.add(new SitemapEntry(loc,
+									parseLastMod(lastmod),
+									parsePriority(priority)));
+						}
+					} else if (isElement(r, "sitemap")) {
+						if (loc != null && !loc.isEmpty()) {
+							children.add(loc);
+						}
+					}
+					text.setLength(0);
+					break;
+				}
+			}
+		} finally {
+			r.close();
+		}
+	}
+
+	private static void parseText(InputStream in, List<SitemapEntry> entries)
+			throws IOException {
+		BufferedReader r = new BufferedReader(new InputStreamReader(in,
+				StandardCharsets.UTF_8));
+		String line;
+		while ((line = r.readLine()) != null && entries.size() < MAX_URLS) {
+			line = line.trim();
+			if (line.startsWith("http://") || line.startsWith("https://")) {
+				entries.add(new SitemapEntry(line, -1, DEFAULT_PRIORITY));
+			}
+		}
+	}
+
+	private static boolean isElement(XMLStreamReader r, String name) {
+		String n = r.getLocalName();
+		int colon = n.indexOf(':');
+		return (colon < 0 ? n : n.substring(colon + 1)).equals(name);
+	}
+
+	/**
+	 * W3C datetime as used in sitemaps: a date, or a date and time with a
+	 * zone offset. Returns -1 if missing or unreadable.
+	 */
+	static long parseLastMod(String s) {
+		if (s == null || s.isEmpty()) {
+			return -1;
+		}
+		try {
+			if (s.length() <= 10) {
+				return LocalDate.parse(s).atStartOfDay(ZoneOffset.UTC)
+						.toInstant().toEpochMilli();
+			}
+			return OffsetDateTime.parse(s).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	static double parsePriority(String s) {
+		if (s == null || s.isEmpty()) {
+			return DEFAULT_PRIORITY;
+		}
+		try {
+			double p = Double.parseDouble(s);
+			return p >= 0 && p <= 1 ? p : DEFAULT_PRIORITY;
+		} catch (NumberFormatException e) {
+			return DEFAULT_PRIORITY;
+		}
 	}
 
+	/**
+	 * Fails the read once more than max bytes have come through, so a
+	 * runaway (or decompression bomb) sitemap cannot keep us busy forever.
+	 */
+	private static class Limited extends FilterInputStream {
+		private long remaining;
+
+		Limited(InputStream in, long max) {
+			super(in);
+			remaining = max;
+		}
+
+		private int count(int n) throws IOException {
+			if (n > 0 && (remaining -= n) < 0) {
+				throw new IOException("Sitemap larger than " + MAX_BYTES);
+			}
+			return n;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			count(b < 0 ? 0 : 1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return count(super.read(b, off, len));
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long s = super.skip(n);
+			count((int) Math.min(s, Integer.MAX_VALUE));
+			return s;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
 }
@@ -0,0 +1,85 @@
+package crawler.node.core;
+
+import java.util.HashMap;
+
+import crawler.node.utils.SimHash;
+
+/**
+ * SimHashes of the pages this node has stored, split into BANDS bands of
+ * 16 bits. Two hashes within MAX_DISTANCE (< BANDS) bits of each other
+ * must agree on at least one whole band, so a lookup only compares against
+ * the pages sharing a band value with the new one. Buckets keep their most
+ * recent BUCKET_SIZE pages, so boilerplate that lands everything in one
+ * bucket can't make lookups slow. The index only lives in memory: it
+ * starts empty on each node and after a restart, and is not rebuilt from
+ * the simhash stored with each fingerprint record, so near duplicates of
+ * pages stored before then, or on other nodes, are stored again.
+ */
+public class NearDuplicateIndex {
+	public static final int BANDS = 4;
+	public static final int MAX_DISTANCE = Math.min(BANDS - 1,
+			Integer.getInteger("crawler.nearDupBits", 3));
+	private static final int BUCKET_SIZE = 32;
+	private static final int MAX_PAGES = 4000000;
+
+	// [simhash, fingerprint] pairs, most recent last
+	private final HashMap<Integer, long[]>[] bands;
+	private int pages;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public NearDuplicateIndex() {
+		bands = new HashMap[BANDS];
+		for (int i = 0; i < BANDS; i++) {
+			bands[i] = new HashMap<>();
+		}
+	}
+
+	private static int band(long simhash, int i) {
+		return (int) (simhash >>> (i * 16)) & 0xffff;
+	}
+
+	/**
+	 * The fingerprint of an indexed page within MAX_DISTANCE of simhash,
+	 * or, if there is none, fingerprint itself after indexing the page
+	 * under it.
+	 */
+	public synchronized long findOrAdd(long simhash, long fingerprint) {
+		for (int i = 0; i < BANDS; i++) {
+			long[] bucket = bands[i].get(band(simhash, i));
+			if (bucket == null) {
+				continue;
+			}
+			for (int j = bucket.length - 2; j >= 0; j -= 2) {
+				if (SimHash.distance(bucket[j], simhash) <= MAX_DISTANCE) {
+					return bucket[j + 1];
+				}
+			}
+		}
+		if (pages >= MAX_PAGES) {
+			return fingerprint;
+		}
+		pages++;
+		for (int i = 0; i < BANDS; i++) {
+			int key = band(simhash, i);
+			long[] bucket = bands[i].get(key);
+			long[] n;
+			if (bucket == null) {
+				n = new long[2];
+			} else if (bucket.length < BUCKET_SIZE * 2) {
+				n = new long[bucket.length + 2];
+				System.arraycopy(bucket, 0, n, 0, bucket.length);
+			} else {
+				n = new long[bucket.length];
+				System.arraycopy(bucket, 2, n, 0, bucket.length - 2);
+			}
+			n[n.length - 2] = simhash;
+			n[n.length - 1] = fingerprint;
+			bands[i].put(key, n);
+		}
+		return fingerprint;
+	}
+
+	public synchronized int size() {
+		return pages;
+	}
+}
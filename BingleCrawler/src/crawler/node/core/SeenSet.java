@@ -0,0 +1,77 @@
+package crawler.node.core;
+
+import crawler.node.utils.BloomFilter;
+import crawler.node.utils.LongHashSet;
+import crawler.node.utils.URLInfo;
+import crawler.node.utils.UrlHash;
+
+/**
+ * Paths a domain has already queued, so enqHead can drop repeats in
+ * constant time. Paths are kept as 64-bit hashes: with crawler.seen=exact
+ * (the default) each domain has its own hash set, with crawler.seen=bloom
+ * all domains share one Bloom filter sized by crawler.seenExpected, at a
+ * few bytes per URL and the odd URL wrongly taken as seen.
+ */
+public abstract class SeenSet {
+	public static final boolean BLOOM = "bloom".equals(System.getProperty(
+			"crawler.seen", "exact"));
+	public static final long EXPECTED = Long.getLong("crawler.seenExpected",
+			20000000L);
+	public static final double FALSE_POSITIVE_RATE = 0.001;
+
+	private static BloomFilter shared;
+
+	private static synchronized BloomFilter getShared() {
+		if (shared == null) {
+			shared = new BloomFilter(EXPECTED, FALSE_POSITIVE_RATE);
+		}
+		return shared;
+	}
+
+	public static SeenSet forDomain(URLInfo domain) {
+		long seed = UrlHash.hash64(domain.toString());
+		return BLOOM ? new Bloom(seed, getShared()) : new Exact(seed);
+	}
+
+	protected final long seed;
+
+	protected SeenSet(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns true if path had not been seen before.
+	 */
+	public boolean add(String path) {
+		return add(UrlHash.hash64(seed, path));
+	}
+
+	protected abstract boolean add(long hash);
+
+	private static class Exact extends SeenSet {
+		private final LongHashSet set = new LongHashSet();
+
+		Exact(long seed) {
+			super(seed);
+		}
+
+		@Override
+		protected boolean add(long hash) {
+			return set.add(hash);
+		}
+	}
+
+	private static class Bloom extends SeenSet {
+		private final BloomFilter filter;
+
+		Bloom(long seed, BloomFilter filter) {
+			super(seed);
+			this.filter = filter;
+		}
+
+		@Override
+		protected boolean add(long hash) {
+			return filter.add(hash);
+		}
+	}
+}
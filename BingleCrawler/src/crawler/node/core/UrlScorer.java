@@ -0,0 +1,17 @@
+package crawler.node.core;
+
+import crawler.node.utils.URLInfo;
+
+/**
+ * A prior for how much a page is worth fetching, added to the score
+ * Frontier works out from the URL itself. Set crawler.scorer to the class
+ * name of an implementation (with a no-argument constructor) to use one,
+ * e.g. to feed in last crawl's PageRank.
+ */
+public interface UrlScorer {
+	/**
+	 * Score for path on domain, roughly in [-1, 1]; 0 if there is nothing
+	 * to say about it.
+	 */
+	double prior(URLInfo domain, String path);
+}
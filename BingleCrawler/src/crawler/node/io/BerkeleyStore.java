@@ -0,0 +1,154 @@
+package crawler.node.io;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.sleepycat.bind.tuple.LongBinding;
+import com.sleepycat.bind.tuple.StringBinding;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+import crawler.node.io.DynamoInterface.FingerPrintRecord;
+import crawler.node.io.DynamoInterface.SiteInfo;
+
+/**
+ * Both tables in a local Berkeley DB JE environment, for running a node at
+ * local disk speed or without AWS at all. Records are stored as tuples;
+ * fields added later go at the end so older records still read.
+ */
+public class BerkeleyStore implements CrawlStore {
+	private static final Logger logger = Logger.getLogger(BerkeleyStore.class);
+
+	private final Environment env;
+	private final Database sites;
+	private final Database fingerprints;
+
+	private static final TupleBinding<SiteInfo> siteBinding = new TupleBinding<SiteInfo>() {
+		@Override
+		public SiteInfo entryToObject(TupleInput in) {
+			SiteInfo si = new SiteInfo();
+			si.setCrawlDate(in.readLong());
+			si.setFingerPrint(in.readLong());
+			si.setEtag(in.readString());
+			return si;
+		}
+
+		@Override
+		public void objectToEntry(SiteInfo si, TupleOutput out) {
+			out.writeLong(si.getCrawlDate());
+			out.writeLong(si.getFingerPrint());
+			out.writeString(si.getEtag());
+		}
+	};
+
+	private static final TupleBinding<FingerPrintRecord> fpBinding = new TupleBinding<FingerPrintRecord>() {
+		@Override
+		public FingerPrintRecord entryToObject(TupleInput in) {
+			FingerPrintRecord fr = new FingerPrintRecord();
+			fr.setFilepath(in.readString());
+			fr.setLastParsed(in.readLong());
+			if (in.available() > 0) {
+				fr.setSimhash(in.readLong());
+			}
+			return fr;
+		}
+
+		@Override
+		public void objectToEntry(FingerPrintRecord fr, TupleOutput out) {
+			out.writeString(fr.getFilepath());
+			out.writeLong(fr.getLastParsed());
+			out.writeLong(fr.getSimhash());
+		}
+	};
+
+	public BerkeleyStore(File dir) {
+		dir.mkdirs();
+		EnvironmentConfig ec = new EnvironmentConfig();
+		ec.setAllowCreate(true);
+		env = new Environment(dir, ec);
+		DatabaseConfig dc = new DatabaseConfig();
+		dc.setAllowCreate(true);
+		sites = env.openDatabase(null, "siterecord", dc);
+		fingerprints = env.openDatabase(null, "fingerprints", dc);
+		logger.debug("Opened crawl store in " + dir.getAbsolutePath());
+	}
+
+	@Override
+	public SiteInfo getSiteInfo(String url) {
+		DatabaseEntry key = new DatabaseEntry();
+		StringBinding.stringToEntry(url, key);
+		DatabaseEntry data = new DatabaseEntry();
+		if (sites.get(null, key, data, LockMode.DEFAULT) != OperationStatus.SUCCESS) {
+			return null;
+		}
+		SiteInfo si = siteBinding.entryToObject(data);
+		si.setUrl(url);
+		return si;
+	}
+
+	@Override
+	public void saveSiteInfo(SiteInfo si) {
+		DatabaseEntry key = new DatabaseEntry();
+		StringBinding.stringToEntry(si.getUrl(), key);
+		DatabaseEntry data = new DatabaseEntry();
+		siteBinding.objectToEntry(si, data);
+		sites.put(null, key, data);
+	}
+
+	@Override
+	public FingerPrintRecord getFPRecord(long fingerprint) {
+		DatabaseEntry key = new DatabaseEntry();
+		LongBinding.longToEntry(fingerprint, key);
+		DatabaseEntry data = new DatabaseEntry();
+		if (fingerprints.get(null, key, data, LockMode.DEFAULT) != OperationStatus.SUCCESS) {
+			return null;
+		}
+		FingerPrintRecord fr = fpBinding.entryToObject(data);
+		fr.setFingerprint(fingerprint);
+		return fr;
+	}
+
+	@Override
+	public void saveFPRecord(FingerPrintRecord fr) {
+		DatabaseEntry key = new DatabaseEntry();
+		LongBinding.longToEntry(fr.getFingerprint(), key);
+		DatabaseEntry data = new DatabaseEntry();
+		fpBinding.objectToEntry(fr, data);
+		fingerprints.put(null, key, data);
+	}
+
+	@Override
+	public List<Object> batchSave(List<Object> records) {
+		for (Object o : records) {
+			if (o instanceof SiteInfo) {
+				saveSiteInfo((SiteInfo) o);
+			} else {
+				saveFPRecord((FingerPrintRecord) o);
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void close() {
+		try {
+			sites.close();
+			fingerprints.close();
+			env.close();
+		} catch (DatabaseException e) {
+			logger.error("Closing crawl store", e);
+		}
+	}
+}
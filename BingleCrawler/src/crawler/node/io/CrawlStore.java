@@ -0,0 +1,38 @@
+package crawler.node.io;
+
+import java.util.List;
+
+import crawler.node.io.DynamoInterface.FingerPrintRecord;
+import crawler.node.io.DynamoInterface.SiteInfo;
+
+/**
+ * Where a crawler node keeps its SiteInfo and FingerPrintRecord tables.
+ * DynamoInterface picks the implementation from crawler.store.
+ */
+public interface CrawlStore {
+
+	/**
+	 * Null if we have no record of url.
+	 */
+	SiteInfo getSiteInfo(String url);
+
+	void saveSiteInfo(SiteInfo si);
+
+	/**
+	 * Null if we have no record of fingerprint.
+	 */
+	FingerPrintRecord getFPRecord(long fingerprint);
+
+	void saveFPRecord(FingerPrintRecord fr);
+
+	/**
+	 * Save a mix of SiteInfo and FingerPrintRecords in one go. Returns the
+	 * records that were not saved and should be retried.
+	 */
+	List<Object> batchSave(List<Object> records);
+
+	/**
+	 * Flush anything outstanding and let go of the backing store.
+	 */
+	void close();
+}
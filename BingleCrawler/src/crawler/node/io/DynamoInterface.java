@@ -1,28 +1,55 @@
 package crawler.node.io;
 
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import java.io.File;
+
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
-import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
 import com.amazonaws.services.dynamodbv2.model.DeleteTableResult;
-import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
 
+/**
+ * Crawl records, kept in whichever CrawlStore crawler.store names: "dynamo"
+ * (the default, shared DynamoDB tables) or "berkeley" (a local Berkeley DB
+ * JE environment in crawler.storeDir). Saves go through a WriteBehindStore
+ * unless crawler.writeBehind is false.
+ */
 public class DynamoInterface {
+	public static final String STORE = System.getProperty("crawler.store",
+			"dynamo");
+	public static final String STORE_DIR = System.getProperty(
+			"crawler.storeDir", "crawlstore");
+
+	public static final boolean WRITE_BEHIND = Boolean.parseBoolean(System
+			.getProperty("crawler.writeBehind", "true"));
+
+	private static final CrawlStore store = openStore();
+
+	private static CrawlStore openStore() {
+		CrawlStore s;
+		if (STORE.equals("berkeley")) {
+			s = new BerkeleyStore(new File(STORE_DIR));
+		} else {
+			s = new DynamoStore();
+		}
+		return WRITE_BEHIND ? new WriteBehindStore(s) : s;
+	}
 
-	private static final AmazonDynamoDBClient client = new AmazonDynamoDBClient(
-			new ProfileCredentialsProvider());
+	public static CrawlStore getStore() {
+		return store;
+	}
 
-	private static final DynamoDBMapper mapper = new DynamoDBMapper(client);
+	public static void close() {
+		store.close();
+	}
 
 	@DynamoDBTable(tableName = "siterecord")
 	public static class SiteInfo {
 		private String url;
 		private long crawlDate;
 		private long fingerPrint;
+		private String etag;
 
 		@DynamoDBHashKey(attributeName = "url")
 		public String getUrl() {
@@ -51,49 +78,35 @@ public class DynamoInterface {
 			fingerPrint = l;
 		}
 
-		public void save() {
-			while (true) {
-				try {
-					mapper.save(this);
-					break;
-				} catch (ProvisionedThroughputExceededException e) {
-					try {
-						Thread.sleep(1000);
-					} catch (InterruptedException e1) {
-					}
-				}
-			}
+		@DynamoDBAttribute(attributeName = "etag")
+		public String getEtag() {
+			return etag;
+		}
+
+		public void setEtag(String etag) {
+			this.etag = etag;
+		}
 
+		public SiteInfo copy() {
+			SiteInfo si = new SiteInfo();
+			si.url = url;
+			si.crawlDate = crawlDate;
+			si.fingerPrint = fingerPrint;
+			si.etag = etag;
+			return si;
+		}
+
+		public void save() {
+			store.saveSiteInfo(this);
 		}
 	}
 
 	public static SiteInfo getSiteInfo(String url) {
-		while (true) {
-			try {
-				SiteInfo ste = mapper.load(SiteInfo.class, url);
-				return ste;
-			} catch (ProvisionedThroughputExceededException e) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e1) {
-				}
-			}
-		}
+		return store.getSiteInfo(url);
 	}
 
 	public static FingerPrintRecord getFPRecord(long fingerprint) {
-		while (true) {
-			try {
-				FingerPrintRecord ste = mapper.load(FingerPrintRecord.class,
-						fingerprint);
-				return ste;
-			} catch (ProvisionedThroughputExceededException e) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e1) {
-				}
-			}
-		}
+		return store.getFPRecord(fingerprint);
 	}
 
 	@DynamoDBTable(tableName = "fingerprints")
@@ -101,6 +114,7 @@ public class DynamoInterface {
 		private long fingerprint;
 		private String filepath;
 		private long lastParsed;
+		private long simhash;
 
 		@DynamoDBHashKey(attributeName = "fingerprint")
 		public long getFingerprint() {
@@ -129,18 +143,26 @@ public class DynamoInterface {
 			this.lastParsed = lastParsed;
 		}
 
+		@DynamoDBAttribute(attributeName = "simhash")
+		public long getSimhash() {
+			return simhash;
+		}
+
+		public void setSimhash(long simhash) {
+			this.simhash = simhash;
+		}
+
+		public FingerPrintRecord copy() {
+			FingerPrintRecord fr = new FingerPrintRecord();
+			fr.fingerprint = fingerprint;
+			fr.filepath = filepath;
+			fr.lastParsed = lastParsed;
+			fr.simhash = simhash;
+			return fr;
+		}
+
 		public void save() {
-			while (true) {
-				try {
-					mapper.save(this);
-					break;
-				} catch (ProvisionedThroughputExceededException e) {
-					try {
-						Thread.sleep(1000);
-					} catch (InterruptedException e1) {
-					}
-				}
-			}
+			store.saveFPRecord(this);
 		}
 
 	}
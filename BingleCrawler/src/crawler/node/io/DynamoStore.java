@@ -0,0 +1,135 @@
+package crawler.node.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper.FailedBatch;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import crawler.node.io.DynamoInterface.FingerPrintRecord;
+import crawler.node.io.DynamoInterface.SiteInfo;
+import crawler.node.utils.CrawlMetrics;
+
+/**
+ * The shared DynamoDB tables, through DynamoDBMapper. Throttled calls are
+ * retried until they go through.
+ */
+public class DynamoStore implements CrawlStore {
+
+	private final AmazonDynamoDBClient client;
+	private final DynamoDBMapper mapper;
+
+	public DynamoStore() {
+		client = new AmazonDynamoDBClient(new ProfileCredentialsProvider());
+		mapper = new DynamoDBMapper(client);
+	}
+
+	@Override
+	public SiteInfo getSiteInfo(String url) {
+		while (true) {
+			try {
+				return mapper.load(SiteInfo.class, url);
+			} catch (ProvisionedThroughputExceededException e) {
+				throttled();
+			}
+		}
+	}
+
+	@Override
+	public void saveSiteInfo(SiteInfo si) {
+		save(si);
+	}
+
+	@Override
+	public FingerPrintRecord getFPRecord(long fingerprint) {
+		while (true) {
+			try {
+				return mapper.load(FingerPrintRecord.class, fingerprint);
+			} catch (ProvisionedThroughputExceededException e) {
+				throttled();
+			}
+		}
+	}
+
+	@Override
+	public void saveFPRecord(FingerPrintRecord fr) {
+		save(fr);
+	}
+
+	private void save(Object o) {
+		while (true) {
+			try {
+				mapper.save(o);
+				return;
+			} catch (ProvisionedThroughputExceededException e) {
+				throttled();
+			}
+		}
+	}
+
+	/**
+	 * One BatchWriteItem (callers keep batches to 25). Works out which
+	 * records came back unprocessed from their keys; if it can't tell, the
+	 * whole batch is retried, which is harmless as saves are puts.
+	 */
+	@Override
+	public List<Object> batchSave(List<Object> records) {
+		List<FailedBatch> failed;
+		try {
+			failed = mapper.batchSave(records);
+		} catch (Exception e) {
+			return records;
+		}
+		if (failed == null || failed.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Set<String> keys = new HashSet<>();
+		for (FailedBatch b : failed) {
+			if (b.getUnprocessedItems() == null) {
+				return records;
+			}
+			for (List<WriteRequest> l : b.getUnprocessedItems().values()) {
+				for (WriteRequest w : l) {
+					Map<String, AttributeValue> item = w.getPutRequest()
+							.getItem();
+					AttributeValue url = item.get("url");
+					AttributeValue fp = item.get("fingerprint");
+					if (url != null) {
+						keys.add(url.getS());
+					} else if (fp != null) {
+						keys.add("fp:" + fp.getN());
+					}
+				}
+			}
+		}
+		List<Object> retry = new ArrayList<>();
+		for (Object o : records) {
+			if (keys.contains(WriteBehindStore.keyOf(o))) {
+				retry.add(o);
+			}
+		}
+		return retry.isEmpty() ? records : retry;
+	}
+
+	private static void throttled() {
+		CrawlMetrics.getMetrics().storeThrottled();
+		try {
+			Thread.sleep(1000);
+		} catch (InterruptedException e1) {
+		}
+	}
+
+	@Override
+	public void close() {
+		client.shutdown();
+	}
+}
@@ -0,0 +1,277 @@
+package crawler.node.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.utils.BufferPool;
+
+/**
+ * Crawled pages appended to large segment files instead of a file per page.
+ * Each page is a WARC/1.0 response record: the URL, our fingerprint, then
+ * the HTTP headers and the body, so segments can be scanned start to end by
+ * the indexer or any WARC tool. Bodies are stored compressed: gzip and
+ * deflate pages exactly as the server sent them, anything else deflated
+ * here (unless crawler.compressPages is false), with the coding in the
+ * record's Content-Encoding header. A page's location,
+ * "segment@offset+length" of its body plus ":coding" if it is compressed,
+ * goes in FingerPrintRecord.filepath and is all it takes to read the page
+ * back with one positioned read. Segments roll over at
+ * crawler.segmentBytes; their names are unique per process so nodes can
+ * share a directory.
+ */
+public class SegmentStore {
+	public static final long SEGMENT_BYTES = Long.getLong(
+			"crawler.segmentBytes", 1024L * 1024 * 1024);
+	public static final String SUFFIX = ".warc";
+	public static final String FINGERPRINT_HEADER = "Bingle-Fingerprint";
+	public static final boolean COMPRESS = Boolean.parseBoolean(System
+			.getProperty("crawler.compressPages", "true"));
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final Logger logger = Logger.getLogger(SegmentStore.class);
+
+	private final File dir;
+	private final String prefix;
+	private final ConcurrentHashMap<String, FileChannel> readers;
+	private int seq;
+	private String current;
+	private FileChannel out;
+
+	public SegmentStore(File dir) {
+		this.dir = dir;
+		prefix = "crawl-" + System.currentTimeMillis() + "-"
+				+ Integer.toHexString(new Random().nextInt() & 0xffff);
+		readers = new ConcurrentHashMap<>();
+	}
+
+	public static boolean isSegmentLocation(String filepath) {
+		return filepath != null && filepath.indexOf('@') > 0;
+	}
+
+	/**
+	 * Content coding of the page at location, as setBody() takes it: null
+	 * if it was stored uncompressed.
+	 */
+	public static String encodingOf(String location) {
+		int at = location.lastIndexOf('@');
+		int colon = location.indexOf(':', at + 1);
+		return at > 0 && colon > 0 ? location.substring(colon + 1) : null;
+	}
+
+	/**
+	 * Append one page, body being in the given content coding (null if
+	 * none). Returns its location for read().
+	 */
+	public String append(String url, long fingerprint,
+			Map<String, List<String>> headers, ByteBuffer body,
+			String encoding) throws IOException {
+		ByteBuffer deflated = null;
+		if (encoding == null && COMPRESS) {
+			// Compress outside the lock, and keep the page as is if that
+			// does not make it any smaller
+			deflated = deflate(body.duplicate());
+			if (deflated != null && deflated.remaining() < body.remaining()) {
+				body = deflated;
+				encoding = "deflate";
+			}
+		}
+		try {
+			return write(url, fingerprint, headers, body, encoding);
+		} finally {
+			if (deflated != null) {
+				BufferPool.getPool().release(deflated);
+			}
+		}
+	}
+
+	private static ByteBuffer deflate(ByteBuffer page) throws IOException {
+		Deflater d = new Deflater(Deflater.BEST_SPEED);
+		try {
+			return BufferPool.getPool().readFully(
+					new DeflaterInputStream(
+							new BufferPool.BufferInputStream(page), d),
+					Integer.MAX_VALUE - BufferPool.MIN_CLASS);
+		} finally {
+			d.end();
+		}
+	}
+
+	private synchronized String write(String url, long fingerprint,
+			Map<String, List<String>> headers, ByteBuffer body,
+			String encoding) throws IOException {
+		if (out == null || out.position() >= SEGMENT_BYTES) {
+			roll();
+		}
+		int length = body.remaining();
+		byte[] http = httpHead(headers, length, encoding);
+		StringBuilder h = new StringBuilder();
+		h.append("WARC/1.0\r\n");
+		h.append("WARC-Type: response\r\n");
+		h.append("WARC-Record-ID: <urn:uuid:").append(UUID.randomUUID())
+				.append(">\r\n");
+		h.append("WARC-Date: ")
+				.append(Instant.now().truncatedTo(ChronoUnit.SECONDS))
+				.append("\r\n");
+		h.append("WARC-Target-URI: ").append(url).append("\r\n");
+		h.append(FINGERPRINT_HEADER).append(": ").append(fingerprint)
+				.append("\r\n");
+		h.append("Content-Type: application/http; msgtype=response\r\n");
+		h.append("Content-Length: ").append(http.length + length)
+				.append("\r\n\r\n");
+		byte[] warc = h.toString().getBytes(StandardCharsets.UTF_8);
+
+		long start = out.position();
+		long bodyOffset = start + warc.length + http.length;
+		ByteBuffer[] record = { ByteBuffer.wrap(warc), ByteBuffer.wrap(http),
+				body, ByteBuffer.wrap(CRLF), ByteBuffer.wrap(CRLF) };
+		try {
+			long remaining = warc.length + http.length + length + 4;
+			while (remaining > 0) {
+				remaining -= out.write(record);
+			}
+		} catch (IOException e) {
+			// Don't leave half a record in the middle of the segment
+			out.truncate(start);
+			out.position(start);
+			throw e;
+		}
+		return current + "@" + bodyOffset + "+" + length
+				+ (encoding == null ? "" : ":" + encoding);
+	}
+
+	private static byte[] httpHead(Map<String, List<String>> headers,
+			int length, String encoding) {
+		StringBuilder h = new StringBuilder("HTTP/1.1 200 OK\r\n");
+		if (headers != null) {
+			for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+				String k = e.getKey();
+				// The body is stored de-chunked, in our own coding
+				if (k == null || k.equalsIgnoreCase("Content-Length")
+						|| k.equalsIgnoreCase("Transfer-Encoding")
+						|| k.equalsIgnoreCase("Content-Encoding")) {
+					continue;
+				}
+				for (String v : e.getValue()) {
+					h.append(k).append(": ").append(v).append("\r\n");
+				}
+			}
+		}
+		if (encoding != null) {
+			h.append("Content-Encoding: ").append(encoding).append("\r\n");
+		}
+		h.append("Content-Length: ").append(length).append("\r\n\r\n");
+		return h.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private void roll() throws IOException {
+		if (out != null) {
+			out.force(false);
+			out.close();
+		}
+		current = String.format("%s-%05d%s", prefix, ++seq, SUFFIX);
+		out = FileChannel.open(new File(dir, current).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		out.position(out.size());
+		logger.debug("Writing segment " + current);
+	}
+
+	/**
+	 * The body stored at location, still in encodingOf(location), in a
+	 * pooled buffer (flipped) that the caller hands back to BufferPool.
+	 * Locations that are not segment locations are read as a whole file,
+	 * for pages stored before segments.
+	 */
+	public ByteBuffer read(String location) throws IOException {
+		String name;
+		long offset;
+		int length;
+		int at = location.lastIndexOf('@');
+		if (at > 0) {
+			int plus = location.indexOf('+', at);
+			int colon = location.indexOf(':', plus);
+			name = location.substring(0, at);
+			offset = Long.parseLong(location.substring(at + 1, plus));
+			length = Integer.parseInt(location.substring(plus + 1,
+					colon < 0 ? location.length() : colon));
+		} else {
+			name = location;
+			offset = 0;
+			length = (int) new File(dir, name).length();
+		}
+
+		ByteBuffer b = BufferPool.getPool().acquire(Math.max(length, 1));
+		b.limit(length);
+		try {
+			if (at > 0) {
+				FileChannel c = reader(name);
+				while (b.hasRemaining()) {
+					if (c.read(b, offset + b.position()) < 0) {
+						throw new IOException("Short segment " + name);
+					}
+				}
+			} else {
+				RandomAccessFile f = new RandomAccessFile(new File(dir, name),
+						"r");
+				try {
+					while (b.hasRemaining()) {
+						if (f.getChannel().read(b) < 0) {
+							break;
+						}
+					}
+				} finally {
+					f.close();
+				}
+			}
+		} catch (IOException e) {
+			BufferPool.getPool().release(b);
+			throw e;
+		}
+		b.flip();
+		return b;
+	}
+
+	private FileChannel reader(String name) throws IOException {
+		FileChannel c = readers.get(name);
+		if (c == null) {
+			c = FileChannel.open(new File(dir, name).toPath(),
+					StandardOpenOption.READ);
+			FileChannel prev = readers.putIfAbsent(name, c);
+			if (prev != null) {
+				c.close();
+				c = prev;
+			}
+		}
+		return c;
+	}
+
+	public synchronized void close() {
+		try {
+			if (out != null) {
+				out.force(false);
+				out.close();
+				out = null;
+			}
+			for (FileChannel c : readers.values()) {
+				c.close();
+			}
+		} catch (IOException e) {
+			logger.error("Closing segment store", e);
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package crawler.node.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.io.DynamoInterface.FingerPrintRecord;
+import crawler.node.io.DynamoInterface.SiteInfo;
+import crawler.node.utils.CrawlMetrics;
+
+/**
+ * Write-behind buffer in front of another CrawlStore. Saves only park the
+ * record in a pending map, where a later save of the same key replaces it,
+ * and a flusher thread writes them out BATCH at a time with batchSave.
+ * Records the store could not take are put back (unless a newer version
+ * arrived meanwhile) and retried after a jittered exponential backoff.
+ * Reads look at pending and in-flight records first, so they always see
+ * the newest save, and get a copy, as the buffered record may be being
+ * written out. close() drains the buffer before closing the store.
+ */
+public class WriteBehindStore implements CrawlStore {
+	public static final int BATCH = 25; // DynamoDB BatchWriteItem limit
+	public static final long LINGER = 200; // ms
+	public static final int MAX_PENDING = 100000;
+	private static final long BASE_BACKOFF = 100; // ms
+	private static final long MAX_BACKOFF = 30 * 1000; // ms
+	private static final long DRAIN_TIMEOUT = 60 * 1000; // ms
+
+	private static final Logger logger = Logger
+			.getLogger(WriteBehindStore.class);
+
+	private final CrawlStore store;
+	private final ConcurrentHashMap<String, Object> pending;
+	private final ConcurrentHashMap<String, Object> writing;
+	private final Object signal;
+	private final Thread flusher;
+	private final Random random;
+	private volatile boolean closed;
+	private int failures;
+
+	public WriteBehindStore(CrawlStore store) {
+		this.store = store;
+		pending = new ConcurrentHashMap<>();
+		writing = new ConcurrentHashMap<>();
+		signal = new Object();
+		random = new Random();
+		flusher = new Thread(new Flusher(), "store-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * The key a record is buffered under; SiteInfo urls and fingerprints
+	 * cannot collide.
+	 */
+	static String keyOf(Object record) {
+		if (record instanceof SiteInfo) {
+			return ((SiteInfo) record).getUrl();
+		}
+		return "fp:" + ((FingerPrintRecord) record).getFingerprint();
+	}
+
+	private Object buffered(String key) {
+		Object o = pending.get(key);
+		return o != null ? o : writing.get(key);
+	}
+
+	@Override
+	public SiteInfo getSiteInfo(String url) {
+		Object o = buffered(url);
+		return o != null ? ((SiteInfo) o).copy() : store.getSiteInfo(url);
+	}
+
+	@Override
+	public FingerPrintRecord getFPRecord(long fingerprint) {
+		Object o = buffered("fp:" + fingerprint);
+		return o != null ? ((FingerPrintRecord) o).copy() : store
+				.getFPRecord(fingerprint);
+	}
+
+	@Override
+	public void saveSiteInfo(SiteInfo si) {
+		buffer(si);
+	}
+
+	@Override
+	public void saveFPRecord(FingerPrintRecord fr) {
+		buffer(fr);
+	}
+
+	private void buffer(Object record) {
+		// Hold the caller back if the store has fallen this far behind
+		while (!closed && pending.size() >= MAX_PENDING) {
+			wake();
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		pending.put(keyOf(record), record);
+		if (pending.size() >= BATCH) {
+			wake();
+		}
+	}
+
+	@Override
+	public List<Object> batchSave(List<Object> records) {
+		for (Object o : records) {
+			buffer(o);
+		}
+		return Collections.emptyList();
+	}
+
+	private void wake() {
+		synchronized (signal) {
+			signal.notify();
+		}
+	}
+
+	public int pendingCount() {
+		return pending.size() + writing.size();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		wake();
+		try {
+			flusher.join(DRAIN_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!pending.isEmpty()) {
+			logger.error("Closing with " + pending.size()
+					+ " crawl records unsaved");
+		}
+		store.close();
+	}
+
+	/**
+	 * Write out everything pending. Returns false if a batch came back with
+	 * unprocessed records.
+	 */
+	private boolean flush() {
+		List<Object> batch = new ArrayList<>(BATCH);
+		Iterator<String> it = pending.keySet().iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			Object o = pending.get(key);
+			if (o == null) {
+				continue;
+			}
+			// Into writing before it leaves pending, so reads never fall
+			// through to the store in between. If a newer save replaced it
+			// meanwhile, that one stays pending for the next flush
+			writing.put(key, o);
+			pending.remove(key, o);
+			batch.add(o);
+			if (batch.size() == BATCH) {
+				if (!write(batch)) {
+					return false;
+				}
+				batch.clear();
+			}
+		}
+		return batch.isEmpty() || write(batch);
+	}
+
+	private boolean write(List<Object> batch) {
+		List<Object> failed;
+		try {
+			failed = store.batchSave(batch);
+		} catch (RuntimeException e) {
+			logger.debug("Batch save failed", e);
+			failed = batch;
+		}
+		Set<Object> retry = Collections
+				.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		retry.addAll(failed);
+		for (Object o : batch) {
+			String key = keyOf(o);
+			if (retry.contains(o)) {
+				// Back in pending before it leaves writing, so reads never
+				// fall through to the store in between
+				pending.putIfAbsent(key, o);
+			}
+			writing.remove(key, o);
+		}
+		if (failed.isEmpty()) {
+			failures = 0;
+			return true;
+		}
+		return false;
+	}
+
+	private long backoff() {
+		long cap = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(failures, 20));
+		return 1 + (long) (random.nextDouble() * cap);
+	}
+
+	private class Flusher implements Runnable {
+		@Override
+		public void run() {
+			long drainStart = 0;
+			while (true) {
+				synchronized (signal) {
+					if (!closed && pending.size() < BATCH) {
+						try {
+							signal.wait(LINGER);
+						} catch (InterruptedException e) {
+							closed = true;
+						}
+					}
+				}
+				if (pending.isEmpty()) {
+					if (closed) {
+						break;
+					}
+					continue;
+				}
+				if (flush()) {
+					continue;
+				}
+				failures++;
+				CrawlMetrics.getMetrics().storeThrottled();
+				long sleep = backoff();
+				logger.debug("Store throttled, retrying in " + sleep + "ms");
+				if (closed) {
+					if (drainStart == 0) {
+						drainStart = System.currentTimeMillis();
+					} else if (System.currentTimeMillis() - drainStart > DRAIN_TIMEOUT) {
+						break;
+					}
+				}
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					closed = true;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,454 @@
+package crawler.node.master;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.utils.URLInfo;
+
+/**
+ * The master's crawl state on disk, as an append-only log of URL state
+ * changes plus a compacted snapshot now and then. All files live in the
+ * state directory and carry the crawl time:
+ *
+ * <pre>
+ * changes-T-N.log  records (byte state, UTF domain, UTF path), N counting up
+ * seen-T-N.snap    the UrlSeenStore tables as of the end of changes-T-N
+ * pending-T-N.snap the URLs still queued then, (UTF domain, UTF path) each
+ * checkpoint-T     N of the last complete snapshot
+ * </pre>
+ *
+ * A checkpoint only flushes and syncs the current log, so it costs what
+ * changed since the last one. Compaction moves the log on to a new file,
+ * writes the tables and folds the old pending list and the closed logs
+ * into a new one, then deletes what it replaces. States only move from
+ * queued to done, so records can be replayed in any order: a resume loads
+ * the last snapshot and replays the newer logs on several threads at once.
+ */
+public class CheckpointLog {
+	private static final Logger logger = Logger.getLogger(CheckpointLog.class);
+
+	public static final int REPLAY_THREADS = Integer.getInteger(
+			"crawler.replayThreads", Runtime.getRuntime()
+					.availableProcessors());
+
+	private final File dir;
+	private final long crawltime;
+	private final Pattern changes;
+	private long snapshot;
+	private long seq;
+	private FileOutputStream file;
+	private DataOutputStream out;
+
+	/**
+	 * Start a new change log after any left in dir by an earlier run.
+	 */
+	public CheckpointLog(File dir, long crawltime) throws IOException {
+		this.dir = dir;
+		this.crawltime = crawltime;
+		changes = changesPattern(crawltime);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir.getPath());
+		}
+		snapshot = lastSnapshot(dir, crawltime);
+		seq = snapshot;
+		for (long n : changeLogs(dir, changes).keySet()) {
+			seq = Math.max(seq, n);
+		}
+		open(++seq);
+	}
+
+	private void open(long n) throws IOException {
+		file = new FileOutputStream(file(dir, "changes", crawltime, n, ".log"),
+				true);
+		out = new DataOutputStream(new BufferedOutputStream(file));
+	}
+
+	public synchronized void record(byte state, String domain, String path) {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.writeByte(state);
+			out.writeUTF(domain);
+			out.writeUTF(path);
+		} catch (IOException e) {
+			logger.error("Change log write failed", e);
+		}
+	}
+
+	/**
+	 * Make everything recorded so far durable.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		if (out != null) {
+			out.flush();
+			file.getFD().sync();
+		}
+	}
+
+	public synchronized void close() {
+		if (out != null) {
+			try {
+				checkpoint();
+			} catch (IOException e) {
+				logger.debug("Change log sync failed", e);
+			}
+			closeQuietly(out);
+			out = null;
+		}
+	}
+
+	/**
+	 * Snapshot store and drop the logs the snapshot covers. Recording goes
+	 * on into a new log meanwhile.
+	 */
+	public void compact(UrlSeenStore store) throws IOException {
+		long upTo;
+		synchronized (this) {
+			if (out == null) {
+				return;
+			}
+			checkpoint();
+			closeQuietly(out);
+			upTo = seq;
+			open(++seq);
+		}
+
+		// The tables may already hold some changes from the new log; those
+		// are replayed on top again, which does no harm
+		File seen = file(dir, "seen", crawltime, upTo, ".snap");
+		FileOutputStream fs = create(seen);
+		DataOutputStream s = buffer(fs);
+		try {
+			store.write(s);
+			sync(s, fs);
+		} finally {
+			s.close();
+		}
+
+		File pending = file(dir, "pending", crawltime, upTo, ".snap");
+		long n = 0;
+		fs = create(pending);
+		s = buffer(fs);
+		try {
+			List<File> in = new ArrayList<>();
+			if (snapshot > 0) {
+				in.add(file(dir, "pending", crawltime, snapshot, ".snap"));
+			}
+			in.addAll(changeLogs(dir, changes).headMap(upTo, true).values());
+			for (File f : in) {
+				n += copyQueued(f, f.getName().startsWith("pending"), store, s);
+			}
+			sync(s, fs);
+		} finally {
+			s.close();
+		}
+		commit(seen);
+		commit(pending);
+
+		File mark = file(dir, "checkpoint", crawltime, -1, "");
+		fs = create(mark);
+		try {
+			fs.write(Long.toString(upTo).getBytes("US-ASCII"));
+			fs.getFD().sync();
+		} finally {
+			fs.close();
+		}
+		commit(mark);
+		// The renames must be on disk before what they replace is deleted
+		syncDir(dir);
+
+		long old = snapshot;
+		snapshot = upTo;
+		if (old > 0) {
+			file(dir, "seen", crawltime, old, ".snap").delete();
+			file(dir, "pending", crawltime, old, ".snap").delete();
+		}
+		for (File f : changeLogs(dir, changes).headMap(upTo, true).values()) {
+			f.delete();
+		}
+		logger.info("Compacted crawl state at log " + upTo + ": "
+				+ store.size() + " URLs, " + n + " pending");
+	}
+
+	/**
+	 * Copy the still queued URLs in a change log or pending list to out.
+	 */
+	private static long copyQueued(File f, boolean pendingList,
+			UrlSeenStore store, DataOutputStream out) throws IOException {
+		long n = 0;
+		DataInputStream in = openIn(f);
+		try {
+			while (true) {
+				byte state = pendingList ? UrlSeenStore.QUEUED : in.readByte();
+				String domain = in.readUTF();
+				String path = in.readUTF();
+				if (state == UrlSeenStore.QUEUED
+						&& store.state(domain, path) == UrlSeenStore.QUEUED) {
+					out.writeUTF(domain);
+					out.writeUTF(path);
+					n++;
+				}
+			}
+		} catch (EOFException e) {
+			// End of file, or a record torn by a crash
+		} finally {
+			in.close();
+		}
+		return n;
+	}
+
+	/**
+	 * Rebuild the store of a saved crawl: the last snapshot, with every
+	 * newer change log replayed on REPLAY_THREADS threads.
+	 */
+	public static UrlSeenStore load(File dir, long crawltime)
+			throws IOException {
+		final long snap = lastSnapshot(dir, crawltime);
+		final UrlSeenStore store;
+		if (snap > 0) {
+			DataInputStream in = openIn(file(dir, "seen", crawltime, snap,
+					".snap"));
+			try {
+				store = UrlSeenStore.read(in);
+			} finally {
+				in.close();
+			}
+		} else {
+			store = new UrlSeenStore();
+		}
+		List<File> logs = new ArrayList<>(changeLogs(dir,
+				changesPattern(crawltime)).tailMap(snap, false).values());
+		forEach(logs, new FileTask() {
+			@Override
+			public void run(File f) throws IOException {
+				DataInputStream in = openIn(f);
+				try {
+					while (true) {
+						byte state = in.readByte();
+						String domain = in.readUTF();
+						String path = in.readUTF();
+						if (state == UrlSeenStore.DONE) {
+							store.markDone(domain, path);
+						} else {
+							store.markQueued(domain, path);
+						}
+					}
+				} catch (EOFException e) {
+				} finally {
+					in.close();
+				}
+			}
+		});
+		logger.info("Loaded " + store.size() + " URLs from snapshot " + snap
+				+ " and " + logs.size() + " change logs");
+		return store;
+	}
+
+	/**
+	 * Feed every URL of a saved crawl that store (as returned by load) still
+	 * has queued into pending, blocking whenever it is full. Only reads
+	 * what was on disk when load ran.
+	 */
+	public static void streamPending(File dir, long crawltime,
+			final UrlSeenStore store, final BlockingQueue<String> pending,
+			long upTo) throws IOException {
+		final long snap = lastSnapshot(dir, crawltime);
+		List<File> in = new ArrayList<>();
+		if (snap > 0) {
+			in.add(file(dir, "pending", crawltime, snap, ".snap"));
+		}
+		in.addAll(changeLogs(dir, changesPattern(crawltime)).subMap(snap,
+				false, upTo, false).values());
+		forEach(in, new FileTask() {
+			@Override
+			public void run(File f) throws IOException {
+				boolean pendingList = f.getName().startsWith("pending");
+				DataInputStream in = openIn(f);
+				try {
+					while (true) {
+						byte state = pendingList ? UrlSeenStore.QUEUED : in
+								.readByte();
+						String domain = in.readUTF();
+						String path = in.readUTF();
+						if (state == UrlSeenStore.QUEUED
+								&& store.state(domain, path) == UrlSeenStore.QUEUED) {
+							pending.put(URLInfo.withFP(new URLInfo(domain), path)
+									.toString());
+						}
+					}
+				} catch (EOFException e) {
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					in.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * The number of the log this one started with; logs before it belong to
+	 * earlier runs.
+	 */
+	public long firstSeq() {
+		return seq;
+	}
+
+	private interface FileTask {
+		void run(File f) throws IOException;
+	}
+
+	private static void forEach(List<File> files, final FileTask task)
+			throws IOException {
+		if (files.isEmpty()) {
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(REPLAY_THREADS, files.size())));
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (final File f : files) {
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						task.run(f);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> d : results) {
+				try {
+					d.get();
+				} catch (ExecutionException e) {
+					throw new IOException("Replay failed", e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Replay interrupted", e);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static long lastSnapshot(File dir, long crawltime) {
+		File mark = file(dir, "checkpoint", crawltime, -1, "");
+		if (!mark.exists()) {
+			return 0;
+		}
+		BufferedReader r = null;
+		try {
+			r = new BufferedReader(new FileReader(mark));
+			return Long.parseLong(r.readLine().trim());
+		} catch (IOException | RuntimeException e) {
+			logger.error("Unreadable " + mark.getPath()
+					+ ", replaying all change logs", e);
+			return 0;
+		} finally {
+			closeQuietly(r);
+		}
+	}
+
+	private static Pattern changesPattern(long crawltime) {
+		return Pattern.compile("changes-" + crawltime + "-(\\d+)\\.log");
+	}
+
+	private static TreeMap<Long, File> changeLogs(File dir, Pattern changes) {
+		TreeMap<Long, File> logs = new TreeMap<>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				Matcher m = changes.matcher(name);
+				if (m.matches()) {
+					logs.put(Long.parseLong(m.group(1)), new File(dir, name));
+				}
+			}
+		}
+		return logs;
+	}
+
+	private static File file(File dir, String kind, long crawltime, long n,
+			String ext) {
+		return new File(dir, kind + "-" + crawltime + (n < 0 ? "" : "-" + n)
+				+ ext);
+	}
+
+	/**
+	 * Open the temporary file commit(f) will move to f.
+	 */
+	private static FileOutputStream create(File f) throws IOException {
+		return new FileOutputStream(new File(f.getPath() + ".tmp"));
+	}
+
+	private static DataOutputStream buffer(FileOutputStream f) {
+		return new DataOutputStream(new BufferedOutputStream(f));
+	}
+
+	private static void sync(DataOutputStream s, FileOutputStream f)
+			throws IOException {
+		s.flush();
+		f.getFD().sync();
+	}
+
+	private static void commit(File f) throws IOException {
+		if (!new File(f.getPath() + ".tmp").renameTo(f)) {
+			throw new IOException("Could not write " + f.getPath());
+		}
+	}
+
+	/**
+	 * Make renames in dir durable. Not every platform can open a directory
+	 * for this, so a failure is only logged.
+	 */
+	private static void syncDir(File dir) {
+		FileChannel c = null;
+		try {
+			c = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			c.force(true);
+		} catch (IOException e) {
+			logger.debug("Could not sync " + dir.getPath(), e);
+		} finally {
+			closeQuietly(c);
+		}
+	}
+
+	private static DataInputStream openIn(File f) throws IOException {
+		return new DataInputStream(new BufferedInputStream(
+				new FileInputStream(f)));
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -1,38 +1,29 @@
 package crawler.node.master;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.math.BigInteger;
 import java.net.URLDecoder;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.log4j.Logger;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.AmazonSQSClient;
-import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
-import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.PurgeQueueRequest;
-
+import crawler.node.core.CrawlManager;
+import crawler.node.transport.MessageBatcher;
+import crawler.node.transport.QueueReceiver;
+import crawler.node.transport.Transport;
+import crawler.node.transport.Transport.Delivery;
+import crawler.node.transport.Transports;
+import crawler.node.utils.HashRing;
 import crawler.node.utils.URLInfo;
 
 public class CrawlerMaster {
@@ -42,45 +33,75 @@ public class CrawlerMaster {
 	public static final String TODOQ = "https://sqs.us-east-1.amazonaws.com/837794297508/TodoQ";
 	public static final String MASTER_ANNOUNCE = "https://sqs.us-east-1.amazonaws.com/837794297508/MasterAnnounce";
 	public static final String MASTER_RECEIVE = "https://sqs.us-east-1.amazonaws.com/837794297508/MasterReceive";
-
-	private final AWSCredentials credentials;
-	public final AmazonSQS sqs;
-	private ArrayList<String> workerQs;
+	public static final String WHITELISTQ = "https://sqs.us-east-1.amazonaws.com/837794297508/whitelist";
+	// Seconds a receive waits for a message
+	private static final int RECEIVE_WAIT = 1;
+	// Nodes to wait for before starting; with the TCP transport they can
+	// only announce themselves once the master is up
+	public static final int MIN_NODES = Integer.getInteger("crawler.minNodes",
+			1);
+	// New links from every node arrive on TODOQ, so it gets more pollers
+	public static final int TODO_POLLERS = Integer.getInteger(
+			"crawler.todoPollers", 8);
+
+	private final Transport transport;
+	private final MessageBatcher batcher;
+	// Node request queues, and which of them crawls which host
+	private volatile HashRing ring;
+	// Stamped on each "qring:" so nodes can drop one that arrives late.
+	// Starts from the clock, so it keeps rising across a resume
+	private long ringSeq;
 	private boolean done;
 
 	private long crawltime;
 	private String mountpath;
-	private boolean alternate = false;
 
 	private final ConcurrentLinkedQueue<String> donesQ;
 	private final ConcurrentLinkedQueue<String> todos;
 	private final Set<String> whitelist;
 
-	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> allSeen;
+	public static final long COMPACT_MINUTES = Long.getLong(
+			"crawler.compactMinutes", 30);
 
-	private Thread doneReceiver;
-	private Thread todoReceiver;
+	private final UrlSeenStore allSeen;
+	private CheckpointLog changeLog;
+	// URLs still queued in a resumed crawl, on their way back to workers
+	private final BlockingQueue<String> resumed = new LinkedBlockingQueue<>(
+			10000);
+	private volatile boolean resuming;
+
+	private QueueReceiver doneReceiver;
+	private QueueReceiver todoReceiver;
+	private QueueReceiver whitelistReceiver;
+	private QueueReceiver membershipReceiver;
 	private Thread transmitThread;
 	private Thread doneThread;
 	private Thread stateThread;
 
-	private BigInteger hashUnit;
-
 	private void cleanupp() {
-		for (int i = 0; i < workerQs.size(); i++) {
-			sqs.sendMessage(MASTER_ANNOUNCE, "qecmd:shutdown");
+		batcher.close();
+		int nodes = ring == null ? 0 : ring.getMembers().size();
+		for (int i = 0; i < nodes; i++) {
+			transport.send(MASTER_ANNOUNCE, "qecmd:shutdown");
 		}
 		done = true;
+		for (QueueReceiver q : new QueueReceiver[] { doneReceiver,
+				todoReceiver, whitelistReceiver, membershipReceiver }) {
+			if (q != null) {
+				q.stop();
+			}
+		}
+		if (changeLog != null) {
+			changeLog.close();
+		}
 	}
 
 	public CrawlerMaster(String mountpath) {
 		this(mountpath, System.currentTimeMillis(), null);
 	}
 
-	public CrawlerMaster(
-			String mountpath,
-			long crawltime,
-			ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> allSeen) {
+	public CrawlerMaster(String mountpath, long crawltime,
+			UrlSeenStore allSeen) {
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
@@ -90,24 +111,34 @@ public class CrawlerMaster {
 		logger = Logger.getLogger(CrawlerMaster.class);
 		this.mountpath = mountpath;
 		this.crawltime = crawltime;
-		credentials = new ProfileCredentialsProvider().getCredentials();
-		sqs = new AmazonSQSClient(credentials);
-		sqs.setRegion(Region.getRegion(Regions.US_EAST_1));
+		transport = Transports.forMaster();
+		batcher = new MessageBatcher(transport);
 		done = false;
 		if (allSeen == null) {
-			this.allSeen = new ConcurrentHashMap<>();
+			this.allSeen = new UrlSeenStore();
 		} else {
 			this.allSeen = allSeen;
+			resuming = true;
 		}
-		workerQs = new ArrayList<String>();
-		List<DeleteMessageBatchRequestEntry> del = new LinkedList<>();
+		try {
+			changeLog = new CheckpointLog(stateDir(mountpath), crawltime);
+		} catch (IOException e) {
+			logger.error("Cannot open the change log, this crawl will not be"
+					+ " resumable", e);
+		}
+		List<String> workerQs = new ArrayList<String>();
 		while (true) {
-			List<Message> msgs = sqs.receiveMessage(MASTER_RECEIVE)
-					.getMessages();
+			boolean waiting = workerQs.size() < MIN_NODES;
+			List<Delivery> msgs = transport.receive(MASTER_RECEIVE,
+					Transport.MAX_BATCH, waiting ? RECEIVE_WAIT : 0);
 			if (msgs.size() == 0) {
+				if (waiting) {
+					continue;
+				}
 				break;
 			}
-			for (Message m : msgs) {
+			List<Delivery> del = new LinkedList<>();
+			for (Delivery m : msgs) {
 				String s = m.getBody();
 				logger.debug("Received message " + s);
 				if (s.startsWith("qnode:")) {
@@ -115,61 +146,136 @@ public class CrawlerMaster {
 					if (!workerQs.contains(worker)) {
 						workerQs.add(s.substring(6));
 					}
-					del.add(new DeleteMessageBatchRequestEntry(
-							m.getMessageId(), m.getReceiptHandle()));
+					del.add(m);
 				}
 			}
 			if (!del.isEmpty()) {
-				sqs.deleteMessageBatch(MASTER_RECEIVE, del);
+				transport.ack(MASTER_RECEIVE, del);
 			}
 		}
 
 		if (allSeen == null) {
-			sqs.purgeQueue(new PurgeQueueRequest(DONEQ));
-			sqs.purgeQueue(new PurgeQueueRequest(TODOQ));
+			transport.purge(DONEQ);
+			transport.purge(TODOQ);
 		}
-		sqs.purgeQueue(new PurgeQueueRequest(MASTER_ANNOUNCE));
+		transport.purge(MASTER_ANNOUNCE);
 
 		for (int i = 0; i < workerQs.size(); i++) {
-			sqs.sendMessage(MASTER_ANNOUNCE,
+			transport.send(MASTER_ANNOUNCE,
 					"qtime:" + Long.toString(crawltime));
-			sqs.sendMessage(MASTER_ANNOUNCE, "qpath:" + mountpath);
+			transport.send(MASTER_ANNOUNCE, "qpath:" + mountpath);
 		}
 
-		hashUnit = new BigInteger("2").pow(160).divide(
-				new BigInteger(Integer.toString(workerQs.size())));
+		ring = new HashRing(workerQs);
+		broadcastRing();
 
 		donesQ = new ConcurrentLinkedQueue<>();
 		todos = new ConcurrentLinkedQueue<>();
 		whitelist = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-		doneReceiver = new Thread(new MessageReceiver(DONEQ, donesQ));
-		todoReceiver = new Thread(new MessageReceiver(TODOQ, todos));
-		new Thread(new MessageReceiver("https://sqs.us-east-1.amazonaws.com/837794297508/whitelist", whitelist)).start();
+		doneReceiver = new QueueReceiver(transport, DONEQ, new LinkHandler(
+				donesQ)).start();
+		todoReceiver = new QueueReceiver(transport, TODOQ, new LinkHandler(
+				todos), TODO_POLLERS).start();
+		whitelistReceiver = new QueueReceiver(transport, WHITELISTQ,
+				new LinkHandler(whitelist), 1).start();
 		transmitThread = new Thread(new URLTransmitter());
 		doneThread = new Thread(new DoneProcessor());
-		doneReceiver.start();
-		todoReceiver.start();
 		transmitThread.start();
 		doneThread.start();
 		stateThread = new Thread(new StateSaver());
 		stateThread.start();
+		membershipReceiver = new QueueReceiver(transport, MASTER_RECEIVE,
+				new MembershipHandler(), 1).start();
+	}
+
+	/**
+	 * The node crawling url's host, or null while there are none.
+	 */
+	private String getWorkerByURL(String url) {
+		return ring.ownerOf(new URLInfo(url).getHostName());
+	}
+
+	private synchronized void join(String worker) {
+		if (ring.contains(worker)) {
+			return;
+		}
+		ring = ring.with(worker);
+		logger.info("Node " + worker + " joined, " + ring.getMembers().size()
+				+ " nodes");
+		transport.send(MASTER_ANNOUNCE, "qtime:" + Long.toString(crawltime));
+		transport.send(MASTER_ANNOUNCE, "qpath:" + mountpath);
+		broadcastRing();
 	}
 
-	private int getWorkerByURL(String url) throws NoSuchAlgorithmException {
-		byte[] hash = MessageDigest.getInstance("SHA-1").digest(
-				new URLInfo(url).getHostName().getBytes());
-		return Math.min(new BigInteger(1, hash).divide(hashUnit).intValue(),
-				workerQs.size() - 1);
+	private synchronized void leave(String worker) {
+		if (!ring.contains(worker)) {
+			return;
+		}
+		ring = ring.without(worker);
+		logger.info("Node " + worker + " left, " + ring.getMembers().size()
+				+ " nodes");
+		broadcastRing();
+	}
+
+	/**
+	 * Tell every node the current membership, as "qring:seq:members". Sent
+	 * on its own rather than through the batcher, so it never shares a
+	 * message with URLs.
+	 */
+	private synchronized void broadcastRing() {
+		HashRing r = ring;
+		ringSeq = Math.max(ringSeq + 1, System.currentTimeMillis());
+		for (String w : r.getMembers()) {
+			transport.send(w, "qring:" + ringSeq + ":" + r.toString());
+		}
+	}
+
+	private static File stateDir(String mountpath) {
+		return new File(new File(mountpath), "state");
+	}
+
+	private void record(byte state, String dom, String path) {
+		if (changeLog != null) {
+			changeLog.record(state, dom, path);
+		}
+	}
+
+	/**
+	 * Send a URL still queued in a saved crawl to its worker again. Returns
+	 * false, sending nothing, if the ring emptied in the meantime.
+	 */
+	private boolean resend(String url) throws IOException {
+		String owner = getWorkerByURL(url);
+		if (owner == null) {
+			return false;
+		}
+		batcher.add(owner, URLEncoder.encode(url, "UTF-8"));
+		return true;
 	}
 
 	private class URLTransmitter implements Runnable {
 		private final Logger logger = Logger.getLogger(URLTransmitter.class);
 
+		// A resumed URL that found no owner, tried again before the rest
+		private String held;
+
 		@Override
 		public void run() {
 			while (!done) {
 				try {
+					if (ring.getMembers().isEmpty()) {
+						// Every node has left; hold on to the URLs until one
+						// joins
+						Thread.sleep(2 * 1000);
+						continue;
+					}
+					// Already seen and whitelisted before the restart
+					String r = held != null ? held : resumed.poll();
+					if (r != null) {
+						held = resend(r) ? null : r;
+						continue;
+					}
 					String s = todos.poll();
 					if (s == null) {
 						try {
@@ -184,15 +290,16 @@ public class CrawlerMaster {
 					if (!whitelist.contains(dom)) {
 						continue;
 					}
-					if (!allSeen.contains(dom)) {
-						allSeen.putIfAbsent(dom,
-								new ConcurrentHashMap<String, Boolean>());
+					// The ring can empty after the check above; resolve the
+					// owner before marking the URL queued so it is not lost
+					String owner = getWorkerByURL(decoded);
+					if (owner == null) {
+						todos.add(s);
+						continue;
 					}
-					ConcurrentHashMap<String, Boolean> sss = allSeen.get(dom);
-					if (!sss.contains(full.getFilePath())) {
-						sss.put(full.getFilePath(), false);
-						sqs.sendMessage(workerQs.get(getWorkerByURL(decoded)),
-								s);
+					if (allSeen.markQueued(dom, full.getFilePath())) {
+						record(UrlSeenStore.QUEUED, dom, full.getFilePath());
+						batcher.add(owner, s);
 					}
 				} catch (Exception e) {
 					logger.debug("URL Transmitter exception:", e);
@@ -216,14 +323,11 @@ public class CrawlerMaster {
 						}
 						continue;
 					}
-					URLInfo full = new URLInfo(s);
+					URLInfo full = new URLInfo(URLDecoder.decode(s, "UTF-8"));
 					String dom = URLInfo.withFP(full, "/").toString();
-					if (!allSeen.contains(dom)) {
-						allSeen.putIfAbsent(dom,
-								new ConcurrentHashMap<String, Boolean>());
+					if (allSeen.markDone(dom, full.getFilePath())) {
+						record(UrlSeenStore.DONE, dom, full.getFilePath());
 					}
-					ConcurrentHashMap<String, Boolean> sss = allSeen.get(dom);
-					sss.put(full.getFilePath(), true);
 				} catch (Exception e) {
 					logger.debug("Done processor exception", e);
 				}
@@ -231,29 +335,35 @@ public class CrawlerMaster {
 		}
 	}
 
+	/**
+	 * Syncs the change log every minute and compacts it every
+	 * COMPACT_MINUTES, once a resume has read what it needs.
+	 */
 	private class StateSaver implements Runnable {
 		private final Logger logger = Logger.getLogger(StateSaver.class);
 
 		@Override
 		public void run() {
 			logger.debug("Running StateSaver thread (60s interval)");
+			long lastCompact = System.currentTimeMillis();
 			while (!done) {
 				try {
 					Thread.sleep(60 * 1000);
 				} catch (InterruptedException ex) {
 				}
+				if (changeLog == null) {
+					continue;
+				}
 				try {
-					File fdir = new File(new File(mountpath), "state");
-					fdir.mkdir();
-					int x = alternate ? 1 : 2;
-					ObjectOutputStream f = new ObjectOutputStream(
-							new FileOutputStream(new File(fdir, "state-saved-"
-									+ Long.toString(crawltime) + "-" + Integer.toString(x))));
-					logger.debug("Begin saving object....");
-					f.writeObject(allSeen);
-					f.close();
-					logger.debug("Finished saving object");
-					alternate = !alternate;
+					changeLog.checkpoint();
+					long now = System.currentTimeMillis();
+					if (!resuming
+							&& now - lastCompact >= COMPACT_MINUTES * 60 * 1000) {
+						logger.debug("Begin compacting " + allSeen.size()
+								+ " URLs....");
+						changeLog.compact(allSeen);
+						lastCompact = now;
+					}
 				} catch (IOException e) {
 					logger.debug("state saver IO Exception", e);
 				}
@@ -261,48 +371,50 @@ public class CrawlerMaster {
 		}
 	}
 
-	private class MessageReceiver implements Runnable {
-		private final Logger logger = Logger.getLogger(MessageReceiver.class);
+	/**
+	 * Nodes joining ("qnode:") or leaving ("qleave:") once the crawl is
+	 * under way. Each change goes out to every node as "qring:", and the
+	 * nodes hand the domains that changed owner over between themselves.
+	 */
+	private class MembershipHandler implements QueueReceiver.Handler {
+		@Override
+		public void handle(List<Delivery> msgs) {
+			for (Delivery m : msgs) {
+				String s = m.getBody();
+				logger.debug("Received message " + s);
+				if (s.startsWith("qnode:")) {
+					join(s.substring(6));
+				} else if (s.startsWith("qleave:")) {
+					leave(s.substring(7));
+				}
+			}
+		}
+	}
 
+	/**
+	 * Unpacks ';' separated links into inQ.
+	 */
+	private class LinkHandler implements QueueReceiver.Handler {
 		private final Collection<String> inQ;
-		private final String qUrl;
 
-		public MessageReceiver(String qUrl, Collection<String> inQ) {
-			this.qUrl = qUrl;
+		public LinkHandler(Collection<String> inQ) {
 			this.inQ = inQ;
 		}
 
 		@Override
-		public void run() {
-			logger.debug("Message Receiver Running");
-			List<Message> msgs;
-			while (!done) {
-				try {
-					msgs = sqs.receiveMessage(qUrl).getMessages();
-					List<String> fullPaths = new LinkedList<>();
-					List<DeleteMessageBatchRequestEntry> del = new LinkedList<>();
-					for (Message m : msgs) {
-						String s = m.getBody();
-						logger.debug("Received message " + s);
-						for (String u : s.split(";")) {
-							fullPaths.add(u);
-						}
-						del.add(new DeleteMessageBatchRequestEntry(m
-								.getMessageId(), m.getReceiptHandle()));
-					}
-					inQ.addAll(fullPaths);
-					if (!del.isEmpty()) {
-						sqs.deleteMessageBatch(qUrl, del);
-					}
-				} catch (Exception e) {
-					logger.debug("Message receiver exception", e);
+		public void handle(List<Delivery> msgs) {
+			List<String> fullPaths = new ArrayList<>();
+			for (Delivery m : msgs) {
+				String s = m.getBody();
+				logger.debug("Received message " + s);
+				for (String u : s.split(";")) {
+					fullPaths.add(u);
 				}
 			}
+			inQ.addAll(fullPaths);
 		}
-
 	}
 
-	@SuppressWarnings("unchecked")
 	public static void main(String[] args) {
 
 		if (args.length == 0) {
@@ -310,41 +422,41 @@ public class CrawlerMaster {
 			return;
 		}
 
+		// Single box: the node shares this JVM, and must have announced
+		// itself before the master looks for nodes
+		if (Transports.isLocal()) {
+			CrawlManager.getManager();
+		}
+
 		if (args.length == 1) {
 			new CrawlerMaster(args[0]);
 		}
 
 		else if (args.length > 2 && "--resume".equals(args[1])) {
 
-			File objF = new File(new File(new File(args[0]), "state"),
-					"state-saved-" + args[2]);
+			// args[2] is the crawl time, optionally followed by "-..."
+			int dash = args[2].indexOf('-');
+			long crawltime = Long.parseLong(dash < 0 ? args[2] : args[2]
+					.substring(0, dash));
+			File dir = stateDir(args[0]);
 			try {
-				ObjectInputStream ois = new ObjectInputStream(
-						new FileInputStream(objF));
-				ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> hmap = (ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>>) ois
-						.readObject();
-				ois.close();
-				CrawlerMaster cm = new CrawlerMaster(args[0],
-						Long.parseLong(args[2]), hmap);
-				for (Entry<String, ConcurrentHashMap<String, Boolean>> e : hmap
-						.entrySet()) {
-					URLInfo dom = new URLInfo(e.getKey());
-					for (Entry<String, Boolean> e1 : e.getValue().entrySet()) {
-						if (!e1.getValue()) {
-							cm.todos.add(URLInfo.withFP(dom, e1.getKey())
-									.toString());
-						}
-					}
+				UrlSeenStore seen = CheckpointLog.load(dir, crawltime);
+				if (seen.size() == 0) {
+					System.err.println("No old scan found.");
+					return;
+				}
+				CrawlerMaster cm = new CrawlerMaster(args[0], crawltime, seen);
+				long first = cm.changeLog == null ? Long.MAX_VALUE
+						: cm.changeLog.firstSeq();
+				try {
+					CheckpointLog.streamPending(dir, crawltime, seen,
+							cm.resumed, first);
+				} finally {
+					cm.resuming = false;
 				}
-			} catch (FileNotFoundException e) {
-				System.err.println("No old scan found.");
-				return;
 			} catch (IOException e) {
 				e.printStackTrace();
 				return;
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
-				return;
 			}
 
 		}
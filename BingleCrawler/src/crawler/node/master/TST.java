@@ -6,24 +6,15 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.AmazonSQSClient;
+import crawler.node.transport.Transport;
+import crawler.node.transport.Transports;
 
 public class TST {
 
 	public static void main(String[] args) throws IOException {
 		
 		
-		AWSCredentials credentials;
-		AmazonSQS sqs;
-		
-		credentials = new ProfileCredentialsProvider().getCredentials();
-		sqs = new AmazonSQSClient(credentials);
-		sqs.setRegion(Region.getRegion(Regions.US_EAST_1));
+		Transport transport = Transports.forNode();
 	
 		
 		BufferedReader r = new BufferedReader(new FileReader(new File("/Users/josh/Desktop/alex500.csv")));
@@ -31,7 +22,7 @@ public class TST {
 		String line = null;
 		while ((line = r.readLine()) != null) {
 			System.out.println(line);
-			sqs.sendMessage(CrawlerMaster.TODOQ, line);
+			transport.send(CrawlerMaster.TODOQ, line);
 		}
 		
 		r.close();
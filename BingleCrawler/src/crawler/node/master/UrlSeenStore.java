@@ -0,0 +1,248 @@
+package crawler.node.master;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import crawler.node.utils.UrlHash;
+
+/**
+ * Every URL the master has handed out, and whether it has been reported
+ * done. A URL is kept as a 62-bit hash with its state in the low two bits
+ * of a long, plus a second, independent 32-bit hash that tells the rare
+ * two URLs sharing a 62-bit hash apart; only those get their full string
+ * stored. That is 12 bytes a slot, or about 16 to 24 an URL with the
+ * tables kept at most three quarters full, instead of the hundreds a URL
+ * cost as nested ConcurrentHashMaps of Strings. The tables are sharded by
+ * domain, each shard with its own lock.
+ */
+public class UrlSeenStore {
+	public static final byte ABSENT = 0;
+	public static final byte QUEUED = 1;
+	public static final byte DONE = 2;
+
+	public static final int SHARDS = Integer.getInteger(
+			"crawler.seenShards", 256);
+	private static final long CHECK_SEED = 0x9e3779b97f4a7c15L;
+	private static final int MAGIC = 0x42534545; // "BSEE"
+	private static final int VERSION = 1;
+
+	private static class Shard {
+		private static final int MIN_CAPACITY = 16;
+		long[] keys = new long[MIN_CAPACITY];
+		int[] checks = new int[MIN_CAPACITY];
+		int size;
+		// Full URL for the odd one whose 62-bit hash is already taken
+		Map<String, Byte> collisions;
+
+		synchronized byte get(long hash, int check, String url) {
+			int i = find(hash);
+			if (keys[i] == 0) {
+				return ABSENT;
+			}
+			if (checks[i] == check) {
+				return (byte) (keys[i] & 3);
+			}
+			Byte b = collisions == null ? null : collisions.get(url);
+			return b == null ? ABSENT : b;
+		}
+
+		/**
+		 * Set the state of url and return the one it had. QUEUED never
+		 * overwrites DONE.
+		 */
+		synchronized byte put(long hash, int check, String url, byte state) {
+			int i = find(hash);
+			if (keys[i] == 0) {
+				keys[i] = hash | state;
+				checks[i] = check;
+				if (++size * 4L > keys.length * 3L) {
+					rehash(keys.length * 2);
+				}
+				return ABSENT;
+			}
+			if (checks[i] == check) {
+				byte old = (byte) (keys[i] & 3);
+				if (state > old) {
+					keys[i] = hash | state;
+				}
+				return old;
+			}
+			if (collisions == null) {
+				collisions = new HashMap<>();
+			}
+			Byte old = collisions.get(url);
+			if (old == null || state > old) {
+				collisions.put(url, state);
+			}
+			return old == null ? ABSENT : old;
+		}
+
+		/**
+		 * Slot holding hash, or the empty slot where it would go.
+		 */
+		private int find(long hash) {
+			int mask = keys.length - 1;
+			for (int i = slot(hash, mask);; i = (i + 1) & mask) {
+				long k = keys[i];
+				if (k == 0 || (k & ~3L) == hash) {
+					return i;
+				}
+			}
+		}
+
+		private static int slot(long hash, int mask) {
+			return (int) ((hash >>> 2) ^ (hash >>> 34)) & mask;
+		}
+
+		private void rehash(int capacity) {
+			long[] oldKeys = keys;
+			int[] oldChecks = checks;
+			keys = new long[capacity];
+			checks = new int[capacity];
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldKeys[j] != 0) {
+					int i = find(oldKeys[j] & ~3L);
+					keys[i] = oldKeys[j];
+					checks[i] = oldChecks[j];
+				}
+			}
+		}
+
+		synchronized int size() {
+			return size + (collisions == null ? 0 : collisions.size());
+		}
+
+		synchronized void write(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != 0) {
+					out.writeLong(keys[i]);
+					out.writeInt(checks[i]);
+				}
+			}
+			out.writeInt(collisions == null ? 0 : collisions.size());
+			if (collisions != null) {
+				for (Map.Entry<String, Byte> e : collisions.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeByte(e.getValue());
+				}
+			}
+		}
+
+		void read(DataInputStream in) throws IOException {
+			int n = in.readInt();
+			int capacity = MIN_CAPACITY;
+			while (n * 4L > capacity * 3L) {
+				capacity *= 2;
+			}
+			keys = new long[capacity];
+			checks = new int[capacity];
+			for (int j = 0; j < n; j++) {
+				long k = in.readLong();
+				int i = find(k & ~3L);
+				keys[i] = k;
+				checks[i] = in.readInt();
+			}
+			size = n;
+			int c = in.readInt();
+			if (c > 0) {
+				collisions = new HashMap<>();
+				for (int j = 0; j < c; j++) {
+					collisions.put(in.readUTF(), in.readByte());
+				}
+			}
+		}
+	}
+
+	private final Shard[] shards;
+
+	public UrlSeenStore() {
+		this(SHARDS);
+	}
+
+	public UrlSeenStore(int shards) {
+		int n = 1;
+		while (n < shards) {
+			n <<= 1;
+		}
+		this.shards = new Shard[n];
+		for (int i = 0; i < n; i++) {
+			this.shards[i] = new Shard();
+		}
+	}
+
+	/**
+	 * Record path on domain (e.g. "http://host/") as handed out. Returns
+	 * true if the URL had not been seen before.
+	 */
+	public boolean markQueued(String domain, String path) {
+		long d = UrlHash.hash64(domain);
+		return shard(d).put(hash(d, path), check(domain, path),
+				domain + path, QUEUED) == ABSENT;
+	}
+
+	/**
+	 * Record the URL as fetched. Returns true if it was not already done.
+	 */
+	public boolean markDone(String domain, String path) {
+		long d = UrlHash.hash64(domain);
+		return shard(d).put(hash(d, path), check(domain, path),
+				domain + path, DONE) != DONE;
+	}
+
+	public byte state(String domain, String path) {
+		long d = UrlHash.hash64(domain);
+		return shard(d).get(hash(d, path), check(domain, path),
+				domain + path);
+	}
+
+	public long size() {
+		long n = 0;
+		for (Shard s : shards) {
+			n += s.size();
+		}
+		return n;
+	}
+
+	private Shard shard(long domainHash) {
+		return shards[(int) (domainHash >>> 40) & (shards.length - 1)];
+	}
+
+	/**
+	 * The 62-bit hash, low two bits clear for the state. Never 0.
+	 */
+	private static long hash(long domainHash, String path) {
+		long h = UrlHash.hash64(domainHash, path) & ~3L;
+		return h == 0 ? 4 : h;
+	}
+
+	private static int check(String domain, String path) {
+		return (int) UrlHash.hash64(UrlHash.hash64(CHECK_SEED, domain), path);
+	}
+
+	/**
+	 * Binary snapshot: each shard is locked only while it is written.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(shards.length);
+		for (Shard s : shards) {
+			s.write(out);
+		}
+	}
+
+	public static UrlSeenStore read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not a URL seen store snapshot");
+		}
+		UrlSeenStore store = new UrlSeenStore(in.readInt());
+		for (Shard s : store.shards) {
+			s.read(in);
+		}
+		return store;
+	}
+}
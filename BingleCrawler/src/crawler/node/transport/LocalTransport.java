@@ -0,0 +1,165 @@
+package crawler.node.transport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Channels as in-memory queues, for a master and node sharing one JVM, and
+ * behind the TcpBroker. A received message stays in flight for
+ * VISIBILITY_MS and is delivered again unless acked by then, as with SQS.
+ */
+public class LocalTransport implements Transport {
+	public static final long VISIBILITY_MS = Long.getLong(
+			"crawler.visibilityMs", 30 * 1000);
+
+	private static class Message {
+		final long id;
+		final String body;
+		long deadline;
+
+		Message(long id, String body) {
+			this.id = id;
+			this.body = body;
+		}
+	}
+
+	private static class Channel {
+		final ArrayDeque<Message> ready = new ArrayDeque<>();
+		// In order of deadline, as every message gets the same visibility
+		final LinkedHashMap<Long, Message> inFlight = new LinkedHashMap<>();
+		long nextId;
+
+		/**
+		 * Move messages whose visibility ran out back to the front. Returns
+		 * the next deadline still pending, or 0.
+		 */
+		long expire(long now) {
+			List<Message> back = null;
+			Iterator<Message> it = inFlight.values().iterator();
+			while (it.hasNext()) {
+				Message m = it.next();
+				if (m.deadline > now) {
+					break;
+				}
+				it.remove();
+				if (back == null) {
+					back = new ArrayList<>();
+				}
+				back.add(m);
+			}
+			if (back != null) {
+				for (int i = back.size() - 1; i >= 0; i--) {
+					ready.addFirst(back.get(i));
+				}
+			}
+			return inFlight.isEmpty() ? 0 : inFlight.values().iterator()
+					.next().deadline;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+
+	private Channel channel(String name) {
+		Channel c = channels.get(name);
+		if (c == null) {
+			channels.putIfAbsent(name, new Channel());
+			c = channels.get(name);
+		}
+		return c;
+	}
+
+	@Override
+	public void send(String channel, String body) {
+		sendBatch(channel, Collections.singletonList(body));
+	}
+
+	@Override
+	public void sendBatch(String channel, List<String> bodies) {
+		Channel c = channel(channel);
+		synchronized (c) {
+			for (String b : bodies) {
+				c.ready.add(new Message(c.nextId++, b));
+			}
+			c.notifyAll();
+		}
+	}
+
+	@Override
+	public List<Delivery> receive(String channel, int max, int waitSeconds) {
+		Channel c = channel(channel);
+		long end = System.currentTimeMillis() + waitSeconds * 1000L;
+		synchronized (c) {
+			while (true) {
+				long now = System.currentTimeMillis();
+				long next = c.expire(now);
+				if (!c.ready.isEmpty()) {
+					List<Delivery> out = new ArrayList<>();
+					while (out.size() < max && !c.ready.isEmpty()) {
+						Message m = c.ready.poll();
+						m.deadline = now + VISIBILITY_MS;
+						c.inFlight.put(m.id, m);
+						out.add(new Delivery(m.body, Long.toString(m.id)));
+					}
+					return out;
+				}
+				if (now >= end) {
+					return Collections.emptyList();
+				}
+				long wait = end - now;
+				if (next > 0) {
+					wait = Math.min(wait, Math.max(1, next - now));
+				}
+				try {
+					c.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return Collections.emptyList();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void ack(String channel, List<Delivery> deliveries) {
+		Channel c = channel(channel);
+		synchronized (c) {
+			for (Delivery d : deliveries) {
+				c.inFlight.remove(Long.parseLong(d.getHandle()));
+			}
+		}
+	}
+
+	@Override
+	public String createChannel(String name) {
+		channel(name);
+		return name;
+	}
+
+	@Override
+	public void deleteChannel(String channel) {
+		Channel c = channels.remove(channel);
+		if (c != null) {
+			synchronized (c) {
+				c.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void purge(String channel) {
+		Channel c = channel(channel);
+		synchronized (c) {
+			c.ready.clear();
+			c.inFlight.clear();
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,212 @@
+package crawler.node.transport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.utils.CrawlMetrics;
+
+/**
+ * Packs items (URL encoded URLs, so never containing ';') bound for the same
+ * channel into ';' separated messages of up to MESSAGE_BYTES, and sends
+ * those ten to a Transport.sendBatch call. A channel's buffer goes out as
+ * soon as it fills ten messages, and whatever is left every LINGER_MS.
+ * Receivers only need to split message bodies on ';', which they already
+ * did.
+ *
+ * A batch the transport fails to send goes back to the front of its buffer,
+ * and that channel is left alone for a doubling backoff before the linger
+ * timer tries again. Only after SEND_RETRIES failures in a row, or on
+ * close(), are its messages given up on.
+ */
+public class MessageBatcher {
+	private static final Logger logger = Logger
+			.getLogger(MessageBatcher.class);
+
+	public static final long LINGER_MS = Long.getLong("crawler.sqsLingerMs",
+			200);
+	// Ten of these, plus ids and separators, have to fit SQS's 256KB a call
+	public static final int MESSAGE_BYTES = Integer.getInteger(
+			"crawler.sqsMessageBytes", 24 * 1024);
+	public static final int MAX_ENTRIES = Transport.MAX_BATCH;
+	public static final int SEND_RETRIES = Integer.getInteger(
+			"crawler.sqsSendRetries", 8);
+	private static final long MAX_BACKOFF_MS = 30 * 1000;
+
+	private class Buffer {
+		final String channel;
+		StringBuilder current = new StringBuilder();
+		List<String> sealed = new ArrayList<>();
+		int failures;
+		long retryAt;
+
+		Buffer(String channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Add item; returns a full batch to send, or null.
+		 */
+		synchronized List<String> add(String item) {
+			if (current.length() > 0
+					&& current.length() + 1 + item.length() > MESSAGE_BYTES) {
+				seal();
+			}
+			if (current.length() > 0) {
+				current.append(';');
+			}
+			current.append(item);
+			if (sealed.size() < MAX_ENTRIES || backingOff()) {
+				return null;
+			}
+			List<String> batch = sealed;
+			sealed = new ArrayList<>();
+			return batch;
+		}
+
+		private void seal() {
+			sealed.add(current.toString());
+			current = new StringBuilder();
+		}
+
+		private boolean backingOff() {
+			return failures > 0 && System.currentTimeMillis() < retryAt;
+		}
+
+		/**
+		 * Everything buffered, or nothing while backing off unless force.
+		 */
+		synchronized List<String> drain(boolean force) {
+			if (!force && backingOff()) {
+				return new ArrayList<>();
+			}
+			if (current.length() > 0) {
+				seal();
+			}
+			List<String> all = sealed;
+			sealed = new ArrayList<>();
+			return all;
+		}
+
+		synchronized void sent() {
+			failures = 0;
+		}
+
+		/**
+		 * Put messages that failed to go out back ahead of anything added
+		 * since. Returns false if they have failed too often to keep.
+		 */
+		synchronized boolean requeue(List<String> messages) {
+			if (++failures > SEND_RETRIES) {
+				failures = 0;
+				return false;
+			}
+			long backoff = Math.min(MAX_BACKOFF_MS,
+					LINGER_MS << Math.min(failures, 20));
+			retryAt = System.currentTimeMillis() + backoff;
+			List<String> all = new ArrayList<>(messages);
+			all.addAll(sealed);
+			sealed = all;
+			return true;
+		}
+	}
+
+	private final Transport transport;
+	private final Map<String, Buffer> buffers = new HashMap<>();
+	private volatile boolean closed;
+	private final Thread lingerer;
+
+	public MessageBatcher(Transport transport) {
+		this.transport = transport;
+		lingerer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					try {
+						Thread.sleep(LINGER_MS);
+					} catch (InterruptedException e) {
+						break;
+					}
+					flush();
+				}
+			}
+		}, "message-batcher");
+		lingerer.setDaemon(true);
+		lingerer.start();
+	}
+
+	/**
+	 * Queue item for channel. It goes out within LINGER_MS, or on this call
+	 * if it fills a batch.
+	 */
+	public void add(String channel, String item) {
+		Buffer b;
+		synchronized (buffers) {
+			b = buffers.get(channel);
+			if (b == null) {
+				b = new Buffer(channel);
+				buffers.put(channel, b);
+			}
+		}
+		List<String> batch = b.add(item);
+		if (batch != null) {
+			send(b, batch, false);
+		}
+	}
+
+	/**
+	 * Send everything buffered, whatever its age, except on channels still
+	 * backing off from a failed send.
+	 */
+	public void flush() {
+		flush(false);
+	}
+
+	private void flush(boolean last) {
+		List<Buffer> all;
+		synchronized (buffers) {
+			all = new ArrayList<>(buffers.values());
+		}
+		for (Buffer b : all) {
+			send(b, b.drain(last), last);
+		}
+	}
+
+	/**
+	 * Stop the linger timer and send what is left, once.
+	 */
+	public void close() {
+		closed = true;
+		lingerer.interrupt();
+		flush(true);
+	}
+
+	/**
+	 * Send messages MAX_ENTRIES at a time. On the first failure the rest
+	 * go back to b, unless last or b has run out of retries.
+	 */
+	private void send(Buffer b, List<String> messages, boolean last) {
+		for (int i = 0; i < messages.size(); i += MAX_ENTRIES) {
+			List<String> batch = messages.subList(i,
+					Math.min(i + MAX_ENTRIES, messages.size()));
+			try {
+				transport.sendBatch(b.channel, batch);
+				CrawlMetrics.getMetrics().sqsSent(batch.size());
+				b.sent();
+			} catch (RuntimeException e) {
+				List<String> rest = messages.subList(i, messages.size());
+				if (!last && b.requeue(rest)) {
+					logger.warn("Failed to send " + rest.size()
+							+ " messages to " + b.channel + ", will retry", e);
+				} else {
+					logger.error("Lost " + rest.size() + " messages to "
+							+ b.channel, e);
+				}
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package crawler.node.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.transport.Transport.Delivery;
+import crawler.node.utils.CrawlMetrics;
+
+/**
+ * Drains a channel: a number of poller threads each long-poll it for up to
+ * MAX_BATCH messages at a time (waiting up to WAIT_SECONDS, so an idle
+ * channel costs one request per poller per wait) and hand what they get to
+ * the handler. The acks go to one more thread that sends them in batches,
+ * so pollers go straight back to receiving. Messages whose handler throws
+ * are not acked and come back after the visibility timeout.
+ */
+public class QueueReceiver {
+	private static final Logger logger = Logger.getLogger(QueueReceiver.class);
+
+	public static final int WAIT_SECONDS = Integer.getInteger(
+			"crawler.receiveWait", 20);
+	public static final int POLLERS = Integer.getInteger("crawler.pollers", 2);
+	private static final long ACK_LINGER_MS = 100;
+	private static final int MAX_ACKS = 100;
+
+	public interface Handler {
+		void handle(List<Delivery> msgs);
+	}
+
+	private final Transport transport;
+	private final String channel;
+	private final Handler handler;
+	private final LinkedBlockingQueue<Delivery> acks = new LinkedBlockingQueue<>();
+	private volatile boolean stopped;
+	private final Thread[] pollers;
+	private final Thread acker;
+
+	public QueueReceiver(Transport transport, String channel, Handler handler) {
+		this(transport, channel, handler, POLLERS);
+	}
+
+	public QueueReceiver(Transport transport, String channel,
+			Handler handler, int pollers) {
+		this.transport = transport;
+		this.channel = channel;
+		this.handler = handler;
+		String name = channel.substring(channel.lastIndexOf('/') + 1);
+		this.pollers = new Thread[Math.max(1, pollers)];
+		for (int i = 0; i < this.pollers.length; i++) {
+			this.pollers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					poll();
+				}
+			}, "receive-" + name + "-" + i);
+			this.pollers[i].setDaemon(true);
+		}
+		acker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ack();
+			}
+		}, "ack-" + name);
+		acker.setDaemon(true);
+	}
+
+	public QueueReceiver start() {
+		for (Thread t : pollers) {
+			t.start();
+		}
+		acker.start();
+		return this;
+	}
+
+	/**
+	 * Stop receiving; acks already queued are still sent.
+	 */
+	public void stop() {
+		stopped = true;
+		acker.interrupt();
+	}
+
+	private void poll() {
+		logger.debug("Receiver for " + channel + " running");
+		while (!stopped) {
+			List<Delivery> msgs;
+			try {
+				msgs = transport.receive(channel, Transport.MAX_BATCH,
+						WAIT_SECONDS);
+			} catch (RuntimeException e) {
+				logger.debug("Receive from " + channel + " failed", e);
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException ie) {
+					break;
+				}
+				continue;
+			}
+			if (msgs.isEmpty()) {
+				continue;
+			}
+			CrawlMetrics.getMetrics().sqsReceived(msgs.size());
+			try {
+				handler.handle(msgs);
+			} catch (RuntimeException e) {
+				logger.error("Handling messages from " + channel
+						+ " failed, leaving them to come back", e);
+				continue;
+			}
+			acks.addAll(msgs);
+		}
+	}
+
+	private void ack() {
+		while (true) {
+			Delivery first;
+			try {
+				first = acks.poll(ACK_LINGER_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// Stopping: send what is left
+				first = acks.poll();
+			}
+			if (first == null) {
+				if (stopped) {
+					return;
+				}
+				continue;
+			}
+			List<Delivery> batch = new ArrayList<>();
+			batch.add(first);
+			acks.drainTo(batch, MAX_ACKS - 1);
+			try {
+				transport.ack(channel, batch);
+			} catch (RuntimeException e) {
+				logger.debug("Ack of " + batch.size() + " messages on "
+						+ channel + " failed", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package crawler.node.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * Channels as SQS queues in us-east-1; a channel id is the queue URL.
+ */
+public class SqsTransport implements Transport {
+	private static final Logger logger = Logger.getLogger(SqsTransport.class);
+
+	private final AmazonSQS sqs;
+
+	public SqsTransport() {
+		AWSCredentials credentials = new ProfileCredentialsProvider()
+				.getCredentials();
+		sqs = new AmazonSQSClient(credentials);
+		sqs.setRegion(Region.getRegion(Regions.US_EAST_1));
+	}
+
+	@Override
+	public void send(String channel, String body) {
+		sqs.sendMessage(channel, body);
+	}
+
+	@Override
+	public void sendBatch(String channel, List<String> bodies) {
+		List<SendMessageBatchRequestEntry> entries = new ArrayList<>(
+				bodies.size());
+		for (int i = 0; i < bodies.size(); i++) {
+			entries.add(new SendMessageBatchRequestEntry(Integer.toString(i),
+					bodies.get(i)));
+		}
+		SendMessageBatchResult result = sqs.sendMessageBatch(channel, entries);
+		if (result.getFailed() == null) {
+			return;
+		}
+		for (BatchResultErrorEntry f : result.getFailed()) {
+			logger.debug("Batch entry to " + channel + " failed ("
+					+ f.getCode() + "), sending alone");
+			sqs.sendMessage(channel, bodies.get(Integer.parseInt(f.getId())));
+		}
+	}
+
+	@Override
+	public List<Delivery> receive(String channel, int max, int waitSeconds) {
+		List<Message> msgs = sqs.receiveMessage(
+				new ReceiveMessageRequest(channel).withMaxNumberOfMessages(
+						Math.min(max, MAX_BATCH)).withWaitTimeSeconds(
+						waitSeconds)).getMessages();
+		List<Delivery> out = new ArrayList<>(msgs.size());
+		for (Message m : msgs) {
+			out.add(new Delivery(m.getBody(), m.getReceiptHandle()));
+		}
+		return out;
+	}
+
+	@Override
+	public void ack(String channel, List<Delivery> deliveries) {
+		for (int i = 0; i < deliveries.size(); i += MAX_BATCH) {
+			List<DeleteMessageBatchRequestEntry> del = new ArrayList<>();
+			int end = Math.min(i + MAX_BATCH, deliveries.size());
+			for (int j = i; j < end; j++) {
+				// Ids only have to be unique within the request
+				del.add(new DeleteMessageBatchRequestEntry(Integer.toString(j),
+						deliveries.get(j).getHandle()));
+			}
+			sqs.deleteMessageBatch(channel, del);
+		}
+	}
+
+	@Override
+	public String createChannel(String name) {
+		return sqs.createQueue(new CreateQueueRequest(name)).getQueueUrl();
+	}
+
+	@Override
+	public void deleteChannel(String channel) {
+		sqs.deleteQueue(channel);
+	}
+
+	@Override
+	public void purge(String channel) {
+		sqs.purgeQueue(new PurgeQueueRequest(channel));
+	}
+
+	@Override
+	public void close() {
+	}
+}
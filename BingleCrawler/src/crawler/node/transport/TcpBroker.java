@@ -0,0 +1,226 @@
+package crawler.node.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.transport.Transport.Delivery;
+
+/**
+ * Serves a Transport (the master's LocalTransport) to TcpTransport clients
+ * on the nodes. Every request and response is one frame: an int length,
+ * then for a request the op byte, the channel and the op's fields; for a
+ * response a status byte (an error message follows a failure) and the
+ * result. Bodies go as an int length and UTF-8 bytes. Each connection gets
+ * a thread, and carries one request at a time.
+ */
+public class TcpBroker {
+	private static final Logger logger = Logger.getLogger(TcpBroker.class);
+
+	static final byte SEND = 1;
+	static final byte RECEIVE = 2;
+	static final byte ACK = 3;
+	static final byte CREATE = 4;
+	static final byte DELETE = 5;
+	static final byte PURGE = 6;
+
+	static final byte OK = 0;
+	static final byte ERROR = 1;
+
+	static final int MAX_FRAME = 16 * 1024 * 1024;
+
+	private final Transport backing;
+	private final ServerSocket server;
+	private final Set<Socket> clients = Collections
+			.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private volatile boolean closed;
+
+	public TcpBroker(Transport backing, int port) throws IOException {
+		this.backing = backing;
+		server = new ServerSocket(port);
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "tcp-broker");
+		t.setDaemon(true);
+		t.start();
+		logger.info("Transport broker listening on port "
+				+ server.getLocalPort());
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	private void accept() {
+		while (!closed) {
+			final Socket s;
+			try {
+				s = server.accept();
+				s.setTcpNoDelay(true);
+			} catch (IOException e) {
+				if (!closed) {
+					logger.error("Broker accept failed", e);
+				}
+				return;
+			}
+			clients.add(s);
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(s);
+				}
+			}, "tcp-broker-" + s.getRemoteSocketAddress());
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private void serve(Socket s) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(s.getOutputStream()));
+			while (!closed) {
+				DataInputStream req = readFrame(in);
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				DataOutputStream resp = new DataOutputStream(buf);
+				try {
+					handle(req, resp);
+				} catch (RuntimeException e) {
+					buf.reset();
+					resp.writeByte(ERROR);
+					resp.writeUTF(String.valueOf(e.getMessage()));
+				}
+				writeFrame(out, buf);
+			}
+		} catch (EOFException e) {
+			// Client went away
+		} catch (IOException e) {
+			if (!closed) {
+				logger.debug("Broker connection " + s.getRemoteSocketAddress()
+						+ " failed", e);
+			}
+		} finally {
+			clients.remove(s);
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void handle(DataInputStream req, DataOutputStream resp)
+			throws IOException {
+		byte op = req.readByte();
+		String channel = req.readUTF();
+		switch (op) {
+		case SEND:
+			int n = req.readInt();
+			List<String> bodies = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				bodies.add(readString(req));
+			}
+			backing.sendBatch(channel, bodies);
+			resp.writeByte(OK);
+			break;
+		case RECEIVE:
+			int max = req.readInt();
+			int wait = req.readInt();
+			List<Delivery> got = backing.receive(channel, max, wait);
+			resp.writeByte(OK);
+			resp.writeInt(got.size());
+			for (Delivery d : got) {
+				resp.writeUTF(d.getHandle());
+				writeString(resp, d.getBody());
+			}
+			break;
+		case ACK:
+			int k = req.readInt();
+			List<Delivery> acks = new ArrayList<>(k);
+			for (int i = 0; i < k; i++) {
+				acks.add(new Delivery(null, req.readUTF()));
+			}
+			backing.ack(channel, acks);
+			resp.writeByte(OK);
+			break;
+		case CREATE:
+			String id = backing.createChannel(channel);
+			resp.writeByte(OK);
+			resp.writeUTF(id);
+			break;
+		case DELETE:
+			backing.deleteChannel(channel);
+			resp.writeByte(OK);
+			break;
+		case PURGE:
+			backing.purge(channel);
+			resp.writeByte(OK);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown op " + op);
+		}
+	}
+
+	public void close() {
+		closed = true;
+		try {
+			server.close();
+		} catch (IOException e) {
+		}
+		for (Socket s : clients) {
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	static DataInputStream readFrame(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0 || len > MAX_FRAME) {
+			throw new IOException("Bad frame length " + len);
+		}
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return new DataInputStream(new ByteArrayInputStream(b));
+	}
+
+	static void writeFrame(DataOutputStream out, ByteArrayOutputStream frame)
+			throws IOException {
+		out.writeInt(frame.size());
+		frame.writeTo(out);
+		out.flush();
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+}
@@ -0,0 +1,193 @@
+package crawler.node.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A node's side of the TcpBroker running in the master. Connections are
+ * pooled, one per request in progress, so a receive waiting on one channel
+ * does not hold up sends. Failures come out as UncheckedIOException, as
+ * SQS's come out as AmazonClientException.
+ */
+public class TcpTransport implements Transport {
+	private static final int CONNECT_TIMEOUT = 10 * 1000;
+	// On top of a receive's own wait
+	private static final int READ_TIMEOUT = 60 * 1000;
+
+	private static class Connection {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream()));
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private final InetSocketAddress broker;
+	private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed;
+
+	public TcpTransport(String host, int port) {
+		broker = new InetSocketAddress(host, port);
+	}
+
+	/**
+	 * Open a request frame for op on channel.
+	 */
+	private static DataOutputStream request(ByteArrayOutputStream buf,
+			byte op, String channel) throws IOException {
+		DataOutputStream req = new DataOutputStream(buf);
+		req.writeByte(op);
+		req.writeUTF(channel);
+		return req;
+	}
+
+	/**
+	 * Send a request and return the response, past its status byte.
+	 */
+	private DataInputStream call(ByteArrayOutputStream req, int waitSeconds)
+			throws IOException {
+		if (closed) {
+			throw new IOException("Transport closed");
+		}
+		Connection c = idle.poll();
+		if (c == null) {
+			Socket s = new Socket();
+			s.setTcpNoDelay(true);
+			s.connect(broker, CONNECT_TIMEOUT);
+			c = new Connection(s);
+		}
+		DataInputStream resp;
+		try {
+			c.socket.setSoTimeout(READ_TIMEOUT + waitSeconds * 1000);
+			TcpBroker.writeFrame(c.out, req);
+			resp = TcpBroker.readFrame(c.in);
+		} catch (IOException e) {
+			c.close();
+			throw e;
+		}
+		idle.add(c);
+		if (resp.readByte() != TcpBroker.OK) {
+			throw new IOException("Broker: " + resp.readUTF());
+		}
+		return resp;
+	}
+
+	@Override
+	public void send(String channel, String body) {
+		sendBatch(channel, Collections.singletonList(body));
+	}
+
+	@Override
+	public void sendBatch(String channel, List<String> bodies) {
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream req = request(buf, TcpBroker.SEND, channel);
+			req.writeInt(bodies.size());
+			for (String b : bodies) {
+				TcpBroker.writeString(req, b);
+			}
+			call(buf, 0);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public List<Delivery> receive(String channel, int max, int waitSeconds) {
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream req = request(buf, TcpBroker.RECEIVE, channel);
+			req.writeInt(max);
+			req.writeInt(waitSeconds);
+			DataInputStream resp = call(buf, waitSeconds);
+			int n = resp.readInt();
+			List<Delivery> out = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				String handle = resp.readUTF();
+				out.add(new Delivery(TcpBroker.readString(resp), handle));
+			}
+			return out;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void ack(String channel, List<Delivery> deliveries) {
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream req = request(buf, TcpBroker.ACK, channel);
+			req.writeInt(deliveries.size());
+			for (Delivery d : deliveries) {
+				req.writeUTF(d.getHandle());
+			}
+			call(buf, 0);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public String createChannel(String name) {
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			request(buf, TcpBroker.CREATE, name);
+			return call(buf, 0).readUTF();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void deleteChannel(String channel) {
+		simple(TcpBroker.DELETE, channel);
+	}
+
+	@Override
+	public void purge(String channel) {
+		simple(TcpBroker.PURGE, channel);
+	}
+
+	private void simple(byte op, String channel) {
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			request(buf, op, channel);
+			call(buf, 0);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		Connection c;
+		while ((c = idle.poll()) != null) {
+			c.close();
+		}
+	}
+}
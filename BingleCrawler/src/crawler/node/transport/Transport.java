@@ -0,0 +1,71 @@
+package crawler.node.transport;
+
+import java.util.List;
+
+/**
+ * The message channels the master and the nodes talk over (DONEQ, TODOQ,
+ * MASTER_ANNOUNCE, MASTER_RECEIVE, the whitelist and each node's request
+ * queue). A channel behaves like an SQS queue: a message received is hidden
+ * from other receivers until it is acked, and comes back if it never is.
+ * Transports picks the implementation from crawler.transport.
+ */
+public interface Transport {
+
+	/**
+	 * One received message; hand it back to ack once handled.
+	 */
+	public static class Delivery {
+		private final String body;
+		private final String handle;
+
+		public Delivery(String body, String handle) {
+			this.body = body;
+			this.handle = handle;
+		}
+
+		public String getBody() {
+			return body;
+		}
+
+		public String getHandle() {
+			return handle;
+		}
+	}
+
+	/**
+	 * The most messages one sendBatch or receive call handles.
+	 */
+	public static final int MAX_BATCH = 10;
+
+	void send(String channel, String body);
+
+	/**
+	 * Send up to MAX_BATCH messages in one request.
+	 */
+	void sendBatch(String channel, List<String> bodies);
+
+	/**
+	 * Up to max messages, waiting up to waitSeconds for the first. Empty if
+	 * none came.
+	 */
+	List<Delivery> receive(String channel, int max, int waitSeconds);
+
+	/**
+	 * Done with these messages; they will not be delivered again.
+	 */
+	void ack(String channel, List<Delivery> deliveries);
+
+	/**
+	 * Make a new channel named name and return the id to address it by.
+	 */
+	String createChannel(String name);
+
+	void deleteChannel(String channel);
+
+	/**
+	 * Drop every message waiting on channel.
+	 */
+	void purge(String channel);
+
+	void close();
+}
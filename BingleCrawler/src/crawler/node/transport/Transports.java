@@ -0,0 +1,61 @@
+package crawler.node.transport;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * The Transport crawler.transport names: "sqs" (the default), "local" (one
+ * in-memory set of channels shared by a master and node in the same JVM)
+ * or "tcp" (the master keeps the channels in memory and serves them on
+ * crawler.brokerPort; nodes connect to crawler.masterHost).
+ */
+public class Transports {
+	public static final String TRANSPORT = System.getProperty(
+			"crawler.transport", "sqs");
+	public static final String MASTER_HOST = System.getProperty(
+			"crawler.masterHost", "localhost");
+	public static final int BROKER_PORT = Integer.getInteger(
+			"crawler.brokerPort", 7070);
+
+	private static LocalTransport local;
+	private static TcpBroker broker;
+
+	public static boolean isLocal() {
+		return TRANSPORT.equals("local");
+	}
+
+	public static synchronized Transport forMaster() {
+		if (isLocal()) {
+			return local();
+		}
+		if (TRANSPORT.equals("tcp")) {
+			LocalTransport t = local();
+			if (broker == null) {
+				try {
+					broker = new TcpBroker(t, BROKER_PORT);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return t;
+		}
+		return new SqsTransport();
+	}
+
+	public static synchronized Transport forNode() {
+		if (isLocal()) {
+			return local();
+		}
+		if (TRANSPORT.equals("tcp")) {
+			return new TcpTransport(MASTER_HOST, BROKER_PORT);
+		}
+		return new SqsTransport();
+	}
+
+	private static LocalTransport local() {
+		if (local == null) {
+			local = new LocalTransport();
+		}
+		return local;
+	}
+}
@@ -0,0 +1,445 @@
+package crawler.node.utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.utils.HttpClient.HeaderCheck;
+import crawler.node.utils.HttpClient.HttpClientException;
+import crawler.node.utils.HttpClient.HttpResponse;
+
+/**
+ * Selector based fetch engine. A handful of IO threads multiplex every plain
+ * HTTP exchange on non-blocking channels, so the number of requests in
+ * flight is bounded by MAX_IN_FLIGHT rather than by the number of crawl
+ * threads. HTTPS still goes through HttpURLConnection, on a small blocking
+ * pool, since the engine does not speak TLS. execute() never blocks: past
+ * MAX_IN_FLIGHT, requests wait in a backlog and start as others finish.
+ * Crawl threads call awaitCapacity() first so they don't fill it.
+ */
+public class AsyncHttpClient {
+	public static final int IO_THREADS = 2;
+	public static final int CALLBACK_THREADS = 16;
+	public static final int SECURE_THREADS = 32;
+	public static final int MAX_IN_FLIGHT = 4000;
+	private static final int SELECT_INTERVAL = 250; // ms
+
+	private static final Logger logger = Logger
+			.getLogger(AsyncHttpClient.class);
+
+	private static AsyncHttpClient client;
+
+	public static synchronized AsyncHttpClient getClient() {
+		if (client == null) {
+			try {
+				client = new AsyncHttpClient();
+			} catch (IOException e) {
+				throw new HttpClientException("Could not open selector");
+			}
+		}
+		return client;
+	}
+
+	private final IoLoop[] loops;
+	private final AtomicInteger nextLoop;
+	private final Semaphore inFlight;
+	private final ConcurrentLinkedQueue<Runnable> backlog;
+	private final ExecutorService callbacks;
+	private final ExecutorService secure;
+
+	private AsyncHttpClient() throws IOException {
+		nextLoop = new AtomicInteger();
+		inFlight = new Semaphore(MAX_IN_FLIGHT);
+		backlog = new ConcurrentLinkedQueue<>();
+		callbacks = Executors.newFixedThreadPool(CALLBACK_THREADS,
+				new Daemons("http-callback"));
+		secure = Executors.newFixedThreadPool(SECURE_THREADS, new Daemons(
+				"http-secure"));
+		loops = new IoLoop[IO_THREADS];
+		ThreadFactory io = new Daemons("http-io");
+		for (int i = 0; i < IO_THREADS; i++) {
+			loops[i] = new IoLoop();
+			io.newThread(loops[i]).start();
+		}
+	}
+
+	public int inFlight() {
+		return MAX_IN_FLIGHT - inFlight.availablePermits();
+	}
+
+	/**
+	 * Block while MAX_IN_FLIGHT requests are outstanding, which is what
+	 * pushes back on the crawl threads.
+	 */
+	public void awaitCapacity() {
+		inFlight.acquireUninterruptibly();
+		inFlight.release();
+	}
+
+	/**
+	 * Start a single request (no redirect handling), or queue it if
+	 * MAX_IN_FLIGHT requests are already outstanding. Safe to call from a
+	 * callback.
+	 */
+	public CompletableFuture<HttpResponse> execute(URLInfo u,
+			String requestType, String date) {
+		return execute(u, requestType, date, null, null);
+	}
+
+	public CompletableFuture<HttpResponse> execute(final URLInfo u,
+			final String requestType, final String date, final String etag,
+			final HeaderCheck check) {
+		final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+		Runnable start = new Runnable() {
+			@Override
+			public void run() {
+				start(u, requestType, date, etag, check, future);
+			}
+		};
+		if (inFlight.tryAcquire()) {
+			start.run();
+			return future;
+		}
+		backlog.add(start);
+		// In case every request finished before it was queued
+		if (inFlight.tryAcquire()) {
+			release();
+		}
+		return future;
+	}
+
+	/**
+	 * Give up a request's permit, or hand it straight to the oldest queued
+	 * request.
+	 */
+	private void release() {
+		Runnable next = backlog.poll();
+		if (next != null) {
+			next.run();
+		} else {
+			inFlight.release();
+		}
+	}
+
+	/**
+	 * Start a request that holds a permit.
+	 */
+	private void start(final URLInfo u, final String requestType,
+			final String date, final String etag, final HeaderCheck check,
+			final CompletableFuture<HttpResponse> future) {
+		if (u.isSecure()) {
+			secure.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						future.complete(HttpClient.runRequest(u, requestType,
+								date, etag, check));
+					} catch (RuntimeException e) {
+						future.completeExceptionally(e);
+					} finally {
+						release();
+					}
+				}
+			});
+			return;
+		}
+
+		// Usually already cached (CrawlManager prefetches new domains), in
+		// which case this runs straight away on the calling thread
+		DnsCache.resolveAsync(u.getHostName()).whenComplete(
+				new BiConsumer<InetAddress, Throwable>() {
+					@Override
+					public void accept(InetAddress a, Throwable t) {
+						if (t != null) {
+							// Off this thread, as release() may start a
+							// queued request that fails the same way
+							callbacks.execute(new Runnable() {
+								@Override
+								public void run() {
+									release();
+									future.completeExceptionally(new HttpClientException(
+											"Unknown hostname"));
+								}
+							});
+							return;
+						}
+						Exchange ex = new Exchange(u, requestType,
+								new InetSocketAddress(a, u.getPortNo()), check,
+								future);
+						ex.request = ByteBuffer.wrap(HttpClient.buildRequest(u,
+								requestType, date, etag));
+						loops[Math.abs(nextLoop.getAndIncrement()
+								% loops.length)].submit(ex);
+					}
+				});
+	}
+
+	private void complete(final Exchange ex, final HttpResponse hr) {
+		release();
+		callbacks.execute(new Runnable() {
+			@Override
+			public void run() {
+				ex.future.complete(hr);
+			}
+		});
+	}
+
+	private void fail(final Exchange ex, final String msg) {
+		release();
+		callbacks.execute(new Runnable() {
+			@Override
+			public void run() {
+				ex.future.completeExceptionally(new HttpClientException(msg));
+			}
+		});
+	}
+
+	private static class Exchange {
+		final URLInfo u;
+		final boolean wantBody;
+		final InetSocketAddress address;
+		final HeaderCheck check;
+		final CompletableFuture<HttpResponse> future;
+		ByteBuffer request;
+		ByteBuffer response;
+		SocketChannel channel;
+		HttpResponse head;
+		int bodyStart;
+		long deadline;
+		boolean done;
+
+		Exchange(URLInfo u, String requestType, InetSocketAddress address,
+				HeaderCheck check, CompletableFuture<HttpResponse> future) {
+			this.u = u;
+			this.wantBody = requestType.equals("GET");
+			this.address = address;
+			this.check = check;
+			this.future = future;
+		}
+	}
+
+	private class IoLoop implements Runnable {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Exchange> pending;
+		private long lastExpiry;
+
+		IoLoop() throws IOException {
+			selector = Selector.open();
+			pending = new ConcurrentLinkedQueue<>();
+		}
+
+		void submit(Exchange ex) {
+			pending.add(ex);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			logger.debug("Async http IO loop running");
+			while (true) {
+				try {
+					selector.select(SELECT_INTERVAL);
+					register();
+					Iterator<SelectionKey> it = selector.selectedKeys()
+							.iterator();
+					while (it.hasNext()) {
+						SelectionKey k = it.next();
+						it.remove();
+						Exchange ex = (Exchange) k.attachment();
+						try {
+							if (!k.isValid()) {
+								continue;
+							}
+							if (k.isConnectable()) {
+								connect(k, ex);
+							} else if (k.isWritable()) {
+								write(k, ex);
+							} else if (k.isReadable()) {
+								read(ex);
+							}
+						} catch (IOException e) {
+							close(ex);
+							fail(ex, "Error talking to " + ex.u.getHostName());
+						} catch (HttpClientException e) {
+							close(ex);
+							fail(ex, e.getMessage());
+						}
+					}
+					expire();
+				} catch (Exception e) {
+					logger.error("Async http IO loop", e);
+				}
+			}
+		}
+
+		private void register() {
+			Exchange ex;
+			while ((ex = pending.poll()) != null) {
+				try {
+					ex.channel = SocketChannel.open();
+					ex.channel.configureBlocking(false);
+					ex.deadline = System.currentTimeMillis()
+							+ HttpClient.TIMEOUT;
+					if (ex.channel.connect(ex.address)) {
+						ex.channel.register(selector, SelectionKey.OP_WRITE, ex);
+					} else {
+						ex.channel.register(selector, SelectionKey.OP_CONNECT,
+								ex);
+					}
+				} catch (IOException e) {
+					close(ex);
+					fail(ex, "Could not connect to specified address");
+				}
+			}
+		}
+
+		private void connect(SelectionKey k, Exchange ex) throws IOException {
+			if (ex.channel.finishConnect()) {
+				ex.deadline = System.currentTimeMillis() + HttpClient.TIMEOUT;
+				k.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void write(SelectionKey k, Exchange ex) throws IOException {
+			ex.channel.write(ex.request);
+			ex.deadline = System.currentTimeMillis() + HttpClient.TIMEOUT;
+			if (!ex.request.hasRemaining()) {
+				ex.request = null;
+				k.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		private void read(Exchange ex) throws IOException {
+			BufferPool pool = BufferPool.getPool();
+			if (ex.response == null) {
+				ex.response = pool.acquire(BufferPool.MIN_CLASS);
+			}
+			int count;
+			while (true) {
+				if (!ex.response.hasRemaining()) {
+					ex.response = pool.grow(ex.response,
+							ex.response.capacity() + 1);
+				}
+				int before = ex.response.position();
+				if ((count = ex.channel.read(ex.response)) <= 0) {
+					break;
+				}
+				ex.deadline = System.currentTimeMillis() + HttpClient.TIMEOUT;
+
+				if (ex.head == null) {
+					int end = HttpClient.headerEnd(ex.response, before,
+							ex.response.position());
+					if (end < 0) {
+						if (ex.response.position() > HttpClient.maxSize) {
+							throw new HttpClientException("Header too large");
+						}
+						continue;
+					}
+					ex.head = HttpClient.parseHead(ex.response, end);
+					ex.head.u = ex.u;
+					ex.bodyStart = end;
+					if (!ex.wantBody || ex.head.status != 200) {
+						close(ex);
+						complete(ex, ex.head);
+						return;
+					}
+					if (ex.check != null && !ex.check.accept(ex.head)) {
+						ex.head.aborted = true;
+						close(ex);
+						complete(ex, ex.head);
+						return;
+					}
+				}
+
+				int body = ex.response.position() - ex.bodyStart;
+				if (body > HttpClient.maxSize) {
+					// Same contract as the blocking client: oversized pages
+					// come back without data
+					close(ex);
+					complete(ex, ex.head);
+					return;
+				}
+				if (ex.head.contentLength >= 0
+						&& body >= ex.head.contentLength) {
+					finish(ex);
+					return;
+				}
+			}
+			if (count < 0) {
+				if (ex.head == null) {
+					throw new HttpClientException("Empty response");
+				}
+				finish(ex);
+			}
+		}
+
+		private void finish(Exchange ex) throws IOException {
+			ByteBuffer response = ex.response;
+			ex.response = null;
+			close(ex);
+			HttpClient.attachBody(ex.head, response, ex.bodyStart,
+					response.position() - ex.bodyStart);
+			complete(ex, ex.head);
+		}
+
+		private void expire() {
+			long now = System.currentTimeMillis();
+			if (now - lastExpiry < SELECT_INTERVAL) {
+				return;
+			}
+			lastExpiry = now;
+			for (SelectionKey k : selector.keys()) {
+				Exchange ex = (Exchange) k.attachment();
+				if (ex != null && !ex.done && ex.deadline < now) {
+					close(ex);
+					fail(ex, "timeout");
+				}
+			}
+		}
+
+		private void close(Exchange ex) {
+			ex.done = true;
+			if (ex.response != null) {
+				BufferPool.getPool().release(ex.response);
+				ex.response = null;
+			}
+			if (ex.channel != null) {
+				try {
+					ex.channel.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private static class Daemons implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		Daemons(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
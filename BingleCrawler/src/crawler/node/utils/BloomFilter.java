@@ -0,0 +1,68 @@
+package crawler.node.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free Bloom filter over 64-bit keys (see UrlHash). The probe
+ * positions are derived from the two halves of the key by double hashing,
+ * so callers hash a URL once.
+ */
+public class BloomFilter {
+	private final AtomicLongArray bits;
+	private final long numBits;
+	private final int numHashes;
+
+	/**
+	 * Sized for expected keys at a false positive rate of fpp.
+	 */
+	public BloomFilter(long expected, double fpp) {
+		long m = (long) Math.ceil(-expected * Math.log(fpp)
+				/ (Math.log(2) * Math.log(2)));
+		int words = (int) Math.min(Integer.MAX_VALUE - 8,
+				Math.max(1, (m + 63) / 64));
+		bits = new AtomicLongArray(words);
+		numBits = words * 64L;
+		numHashes = Math.max(1,
+				(int) Math.round((double) numBits / expected * Math.log(2)));
+	}
+
+	/**
+	 * Adds key. Returns true if it was definitely not there before, false if
+	 * it (probably) was.
+	 */
+	public boolean add(long key) {
+		int h1 = (int) key;
+		int h2 = (int) (key >>> 32);
+		boolean changed = false;
+		for (int i = 1; i <= numHashes; i++) {
+			long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long old;
+			do {
+				old = bits.get(word);
+				if ((old & mask) != 0) {
+					break;
+				}
+			} while (!bits.compareAndSet(word, old, old | mask));
+			changed |= (old & mask) == 0;
+		}
+		return changed;
+	}
+
+	public boolean mightContain(long key) {
+		int h1 = (int) key;
+		int h2 = (int) (key >>> 32);
+		for (int i = 1; i <= numHashes; i++) {
+			long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public long sizeInBytes() {
+		return numBits / 8;
+	}
+}
@@ -0,0 +1,178 @@
+package crawler.node.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable page buffers. Buffers come in power of two size classes from
+ * MIN_CLASS up to the first class that can hold HttpClient.maxSize, and at
+ * most MAX_RETAINED bytes worth of them are kept around between pages.
+ * Direct buffers are used when crawler.directBuffers is set.
+ */
+public class BufferPool {
+	public static final int MIN_CLASS = 16 * 1024;
+	public static final long MAX_RETAINED = Long.getLong(
+			"crawler.bufferPoolBytes", 256L * 1024 * 1024);
+	public static final boolean DIRECT = Boolean
+			.getBoolean("crawler.directBuffers");
+
+	private static final BufferPool pool = new BufferPool();
+
+	public static BufferPool getPool() {
+		return pool;
+	}
+
+	private final ConcurrentLinkedQueue<ByteBuffer>[] classes;
+	private final AtomicLong retained;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private BufferPool() {
+		int n = 1;
+		while ((MIN_CLASS << (n - 1)) < HttpClient.maxSize) {
+			n++;
+		}
+		classes = new ConcurrentLinkedQueue[n];
+		for (int i = 0; i < n; i++) {
+			classes[i] = new ConcurrentLinkedQueue<>();
+		}
+		retained = new AtomicLong();
+	}
+
+	private int classOf(int capacity) {
+		int c = 0;
+		while ((MIN_CLASS << c) < capacity) {
+			c++;
+		}
+		return c;
+	}
+
+	/**
+	 * A cleared buffer with at least the given capacity.
+	 */
+	public ByteBuffer acquire(int capacity) {
+		int c = classOf(capacity);
+		if (c < classes.length) {
+			ByteBuffer b = classes[c].poll();
+			if (b != null) {
+				retained.addAndGet(-b.capacity());
+				b.clear();
+				return b;
+			}
+		}
+		int size = c < classes.length ? MIN_CLASS << c : capacity;
+		return DIRECT ? ByteBuffer.allocateDirect(size) : ByteBuffer
+				.allocate(size);
+	}
+
+	public void release(ByteBuffer b) {
+		if (b == null || b.isReadOnly()) {
+			return;
+		}
+		int c = classOf(b.capacity());
+		if (c >= classes.length || (MIN_CLASS << c) != b.capacity()
+				|| b.isDirect() != DIRECT) {
+			return;
+		}
+		if (retained.addAndGet(b.capacity()) > MAX_RETAINED) {
+			retained.addAndGet(-b.capacity());
+			return;
+		}
+		classes[c].offer(b);
+	}
+
+	/**
+	 * Move to a buffer with room for at least minCapacity bytes, keeping the
+	 * contents written so far. The old buffer goes back to the pool.
+	 */
+	public ByteBuffer grow(ByteBuffer b, int minCapacity) {
+		if (b.capacity() >= minCapacity) {
+			return b;
+		}
+		ByteBuffer n = acquire(Math.max(minCapacity, b.capacity() * 2));
+		b.flip();
+		n.put(b);
+		release(b);
+		return n;
+	}
+
+	/**
+	 * Stream in into a pooled buffer, stopping as soon as more than maxSize
+	 * bytes have been seen. Returns the flipped buffer, or null (with the
+	 * buffer already released) if the stream was too long.
+	 */
+	public ByteBuffer readFully(InputStream in, int maxSize)
+			throws IOException {
+		ByteBuffer b = acquire(MIN_CLASS);
+		byte[] chunk = b.hasArray() ? null : new byte[8192];
+		while (true) {
+			if (!b.hasRemaining()) {
+				if (b.position() > maxSize) {
+					release(b);
+					return null;
+				}
+				b = grow(b, b.capacity() + 1);
+				if (chunk == null && !b.hasArray()) {
+					chunk = new byte[8192];
+				}
+			}
+			int count;
+			if (b.hasArray()) {
+				count = in.read(b.array(), b.arrayOffset() + b.position(),
+						b.remaining());
+				if (count > 0) {
+					b.position(b.position() + count);
+				}
+			} else {
+				count = in.read(chunk, 0, Math.min(chunk.length,
+						b.remaining()));
+				if (count > 0) {
+					b.put(chunk, 0, count);
+				}
+			}
+			if (count < 0) {
+				break;
+			}
+			if (b.position() > maxSize) {
+				release(b);
+				return null;
+			}
+		}
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * InputStream view over a buffer, so stream based consumers can read a
+	 * page without copying it out.
+	 */
+	public static class BufferInputStream extends InputStream {
+		private final ByteBuffer b;
+
+		public BufferInputStream(ByteBuffer b) {
+			this.b = b.duplicate();
+		}
+
+		@Override
+		public int read() {
+			return b.hasRemaining() ? b.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] dst, int off, int len) {
+			if (!b.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, b.remaining());
+			b.get(dst, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return b.remaining();
+		}
+	}
+}
@@ -0,0 +1,464 @@
+package crawler.node.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import crawler.node.utils.HttpClient.HttpResponse;
+
+/**
+ * Counters for a crawl node: pages and bytes fetched, fetch latency per
+ * status code, queue depths, robots.txt fetch time, store throttling and
+ * SQS traffic. Updating a counter is a LongAdder increment, so the hot
+ * paths can call in freely. Rates are worked out every SAMPLE_SECONDS.
+ * Everything is published as an MBean, and as plain text on
+ * http://host:crawler.statsPort/stats if that property is set.
+ */
+public class CrawlMetrics implements CrawlMetricsMBean {
+	public static final int STATS_PORT = Integer.getInteger(
+			"crawler.statsPort", -1);
+	public static final int SAMPLE_SECONDS = 10;
+
+	// Gauge names, registered by whoever owns the queue
+	public static final String SCHEDULER_DEPTH = "schedulerDepth";
+	public static final String EXTRACTOR_DEPTH = "extractorQueueDepth";
+	public static final String EXTRACTOR_BYTES = "extractorQueueBytes";
+	public static final String EXTRACTOR_PRODUCER_WAIT = "extractorProducerWaitMs";
+	public static final String EXTRACTOR_CONSUMER_WAIT = "extractorConsumerWaitMs";
+	public static final String DOMAINS = "domains";
+
+	private static final Logger logger = Logger.getLogger(CrawlMetrics.class);
+	private static final CrawlMetrics metrics = new CrawlMetrics();
+
+	public static CrawlMetrics getMetrics() {
+		return metrics;
+	}
+
+	public interface Gauge {
+		long get();
+	}
+
+	/**
+	 * Latencies in power of two millisecond buckets: bucket 0 is under 1ms,
+	 * bucket i is [2^(i-1), 2^i) ms, and the last one takes the rest.
+	 */
+	public static class Histogram {
+		private static final int BUCKETS = 18;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		public void record(long nanos) {
+			long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+			int b = ms <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(ms);
+			buckets.incrementAndGet(Math.min(b, BUCKETS - 1));
+			count.increment();
+			totalNanos.add(nanos);
+			long max;
+			while (nanos > (max = maxNanos.get())
+					&& !maxNanos.compareAndSet(max, nanos)) {
+			}
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getMeanMillis() {
+			long n = count.sum();
+			return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+		}
+
+		public double getMaxMillis() {
+			return maxNanos.get() / 1e6;
+		}
+
+		/**
+		 * Upper bound in ms of the bucket holding the q quantile.
+		 */
+		public long percentile(double q) {
+			long n = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				n += buckets.get(i);
+			}
+			long rank = (long) Math.ceil(q * n);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0) {
+					return 1L << i;
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d"
+					+ " max=%.1f", getCount(), getMeanMillis(),
+					percentile(0.5), percentile(0.9), percentile(0.99),
+					getMaxMillis());
+		}
+	}
+
+	private final LongAdder pages = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder fetches = new LongAdder();
+	private final LongAdder fetchFailures = new LongAdder();
+	private final LongAdder robotsFetches = new LongAdder();
+	private final LongAdder robotsNanos = new LongAdder();
+	private final LongAdder storeThrottles = new LongAdder();
+	private final LongAdder sqsSent = new LongAdder();
+	private final LongAdder sqsReceived = new LongAdder();
+	// Keyed by status; failed fetches (no response at all) are status 0
+	private final ConcurrentSkipListMap<Integer, Histogram> latency;
+	private final ConcurrentHashMap<String, Gauge> gauges;
+
+	private volatile double pagesPerSecond;
+	private volatile double bytesPerSecond;
+	private volatile double sqsSentPerSecond;
+	private volatile double sqsReceivedPerSecond;
+	private long lastSample;
+	private long lastPages, lastBytes, lastSent, lastReceived;
+
+	private ScheduledExecutorService sampler;
+	private HttpServer server;
+
+	private CrawlMetrics() {
+		latency = new ConcurrentSkipListMap<>();
+		gauges = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Register the MBean, start sampling rates and, if crawler.statsPort
+	 * is set, serve the report over HTTP. Only the first call does
+	 * anything.
+	 */
+	public synchronized void start() {
+		if (sampler != null) {
+			return;
+		}
+		lastSample = System.nanoTime();
+		sampler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "CrawlMetrics");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		sampler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, SAMPLE_SECONDS, SAMPLE_SECONDS, TimeUnit.SECONDS);
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("crawler.node:type=CrawlMetrics"));
+		} catch (JMException e) {
+			logger.warn("Could not register CrawlMetrics MBean", e);
+		}
+
+		if (STATS_PORT >= 0) {
+			try {
+				server = HttpServer.create(new InetSocketAddress(STATS_PORT),
+						0);
+				server.createContext("/stats", new HttpHandler() {
+					@Override
+					public void handle(HttpExchange x) throws IOException {
+						byte[] body = getReport().getBytes(
+								StandardCharsets.UTF_8);
+						x.getResponseHeaders().set("Content-Type",
+								"text/plain; charset=utf-8");
+						x.sendResponseHeaders(200, body.length);
+						OutputStream out = x.getResponseBody();
+						out.write(body);
+						out.close();
+					}
+				});
+				server.start();
+				logger.info("Serving crawl stats on port "
+						+ server.getAddress().getPort());
+			} catch (IOException e) {
+				logger.warn("Could not serve crawl stats on port "
+						+ STATS_PORT, e);
+				server = null;
+			}
+		}
+	}
+
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+		if (sampler != null) {
+			sampler.shutdownNow();
+		}
+	}
+
+	private synchronized void sample() {
+		long now = System.nanoTime();
+		double secs = (now - lastSample) / 1e9;
+		if (secs <= 0) {
+			return;
+		}
+		long p = pages.sum();
+		long b = bytes.sum();
+		long s = sqsSent.sum();
+		long r = sqsReceived.sum();
+		pagesPerSecond = (p - lastPages) / secs;
+		bytesPerSecond = (b - lastBytes) / secs;
+		sqsSentPerSecond = (s - lastSent) / secs;
+		sqsReceivedPerSecond = (r - lastReceived) / secs;
+		lastSample = now;
+		lastPages = p;
+		lastBytes = b;
+		lastSent = s;
+		lastReceived = r;
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("%.1f pages/s, %.0f bytes/s, "
+					+ "scheduler=%d extractorQ=%d", pagesPerSecond,
+					bytesPerSecond, getSchedulerDepth(),
+					getExtractorQueueDepth()));
+		}
+	}
+
+	public void registerGauge(String name, Gauge g) {
+		gauges.put(name, g);
+	}
+
+	private long gauge(String name) {
+		Gauge g = gauges.get(name);
+		return g == null ? 0 : g.get();
+	}
+
+	/**
+	 * A fetch finished, with a response or with error t, nanos after it was
+	 * started. Call before anything decodes the body, so the bytes counted
+	 * are the ones that came over the wire.
+	 */
+	public void fetched(HttpResponse hr, Throwable t, long nanos) {
+		fetches.increment();
+		int status = 0;
+		if (t == null && hr != null) {
+			status = hr.status;
+			bytes.add(hr.getBufferedLength());
+		} else {
+			fetchFailures.increment();
+		}
+		Histogram h = latency.get(status);
+		if (h == null) {
+			Histogram prev = latency.putIfAbsent(status, h = new Histogram());
+			if (prev != null) {
+				h = prev;
+			}
+		}
+		h.record(nanos);
+	}
+
+	/**
+	 * A page was handed on to be stored and have its links extracted.
+	 */
+	public void pageDeposited() {
+		pages.increment();
+	}
+
+	public void robotsFetched(long nanos) {
+		robotsFetches.increment();
+		robotsNanos.add(nanos);
+	}
+
+	/**
+	 * The crawl store turned a request away for lack of capacity.
+	 */
+	public void storeThrottled() {
+		storeThrottles.increment();
+	}
+
+	public void sqsSent(int messages) {
+		sqsSent.add(messages);
+	}
+
+	public void sqsReceived(int messages) {
+		sqsReceived.add(messages);
+	}
+
+	@Override
+	public long getPages() {
+		return pages.sum();
+	}
+
+	@Override
+	public double getPagesPerSecond() {
+		return pagesPerSecond;
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	@Override
+	public long getFetches() {
+		return fetches.sum();
+	}
+
+	@Override
+	public long getFetchFailures() {
+		return fetchFailures.sum();
+	}
+
+	public Histogram getLatency(int status) {
+		return latency.get(status);
+	}
+
+	@Override
+	public String[] getFetchLatency() {
+		List<String> lines = new ArrayList<>();
+		for (Map.Entry<Integer, Histogram> e : latency.entrySet()) {
+			lines.add("status=" + e.getKey() + " " + e.getValue());
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	@Override
+	public long getSchedulerDepth() {
+		return gauge(SCHEDULER_DEPTH);
+	}
+
+	@Override
+	public long getExtractorQueueDepth() {
+		return gauge(EXTRACTOR_DEPTH);
+	}
+
+	@Override
+	public long getExtractorQueueBytes() {
+		return gauge(EXTRACTOR_BYTES);
+	}
+
+	@Override
+	public long getExtractorProducerWaitMillis() {
+		return gauge(EXTRACTOR_PRODUCER_WAIT);
+	}
+
+	@Override
+	public long getExtractorConsumerWaitMillis() {
+		return gauge(EXTRACTOR_CONSUMER_WAIT);
+	}
+
+	@Override
+	public long getDomains() {
+		return gauge(DOMAINS);
+	}
+
+	@Override
+	public long getRobotsFetches() {
+		return robotsFetches.sum();
+	}
+
+	@Override
+	public double getRobotsFetchMillis() {
+		long n = robotsFetches.sum();
+		return n == 0 ? 0 : robotsNanos.sum() / 1e6 / n;
+	}
+
+	@Override
+	public long getStoreThrottles() {
+		return storeThrottles.sum();
+	}
+
+	@Override
+	public long getSqsSent() {
+		return sqsSent.sum();
+	}
+
+	@Override
+	public double getSqsSentPerSecond() {
+		return sqsSentPerSecond;
+	}
+
+	@Override
+	public long getSqsReceived() {
+		return sqsReceived.sum();
+	}
+
+	@Override
+	public double getSqsReceivedPerSecond() {
+		return sqsReceivedPerSecond;
+	}
+
+	/**
+	 * Everything above, one "name value" line each, with a fetch_ms line
+	 * per status code.
+	 */
+	@Override
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		line(sb, "pages", getPages());
+		line(sb, "pages_per_sec", String.format("%.2f", getPagesPerSecond()));
+		line(sb, "bytes", getBytes());
+		line(sb, "bytes_per_sec", String.format("%.0f", getBytesPerSecond()));
+		line(sb, "fetches", getFetches());
+		line(sb, "fetch_failures", getFetchFailures());
+		line(sb, "scheduler_depth", getSchedulerDepth());
+		line(sb, "extractorq_depth", getExtractorQueueDepth());
+		line(sb, "extractorq_bytes", getExtractorQueueBytes());
+		line(sb, "extractorq_producer_wait_ms",
+				getExtractorProducerWaitMillis());
+		line(sb, "extractorq_consumer_wait_ms",
+				getExtractorConsumerWaitMillis());
+		line(sb, "domains", getDomains());
+		line(sb, "robots_fetches", getRobotsFetches());
+		line(sb, "robots_fetch_ms",
+				String.format("%.1f", getRobotsFetchMillis()));
+		line(sb, "store_throttles", getStoreThrottles());
+		line(sb, "sqs_sent", getSqsSent());
+		line(sb, "sqs_sent_per_sec",
+				String.format("%.2f", getSqsSentPerSecond()));
+		line(sb, "sqs_received", getSqsReceived());
+		line(sb, "sqs_received_per_sec",
+				String.format("%.2f", getSqsReceivedPerSecond()));
+		for (String l : getFetchLatency()) {
+			line(sb, "fetch_ms", l);
+		}
+		return sb.toString();
+	}
+
+	private static void line(StringBuilder sb, String name, Object value) {
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,51 @@
+package crawler.node.utils;
+
+/**
+ * What CrawlMetrics shows over JMX, under crawler.node:type=CrawlMetrics.
+ */
+public interface CrawlMetricsMBean {
+	long getPages();
+
+	double getPagesPerSecond();
+
+	long getBytes();
+
+	double getBytesPerSecond();
+
+	long getFetches();
+
+	long getFetchFailures();
+
+	/**
+	 * One line per status code: count, mean and percentiles in ms.
+	 */
+	String[] getFetchLatency();
+
+	long getSchedulerDepth();
+
+	long getExtractorQueueDepth();
+
+	long getExtractorQueueBytes();
+
+	long getExtractorProducerWaitMillis();
+
+	long getExtractorConsumerWaitMillis();
+
+	long getDomains();
+
+	long getRobotsFetches();
+
+	double getRobotsFetchMillis();
+
+	long getStoreThrottles();
+
+	long getSqsSent();
+
+	double getSqsSentPerSecond();
+
+	long getSqsReceived();
+
+	double getSqsReceivedPerSecond();
+
+	String getReport();
+}
@@ -0,0 +1,134 @@
+package crawler.node.utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import crawler.node.utils.HttpClient.HttpClientException;
+
+/**
+ * Crawler wide host name cache. Lookups run on a small resolver pool so the
+ * fetch path never waits on DNS for a host it has seen recently, failures
+ * are remembered for NEGATIVE_TTL, and concurrent lookups of the same host
+ * share one query. Past MAX_ENTRIES hosts, one thread trims the cache to
+ * three quarters of that, expired entries first and then whichever come
+ * first in the table, which is as good as random.
+ */
+public class DnsCache {
+	public static final long TTL = Long.getLong("crawler.dnsTtl",
+			5 * 60 * 1000); // ms
+	public static final long NEGATIVE_TTL = 60 * 1000; // ms
+	public static final int RESOLVER_THREADS = 8;
+	private static final int MAX_ENTRIES = 200000;
+
+	private static final Logger logger = Logger.getLogger(DnsCache.class);
+
+	private static final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+	private static final AtomicBoolean evicting = new AtomicBoolean();
+	private static final ExecutorService resolvers = Executors
+			.newFixedThreadPool(RESOLVER_THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "dns-resolver");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private static class Entry {
+		final CompletableFuture<InetAddress> address = new CompletableFuture<>();
+		volatile long expires = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Start resolving host in the background, typically as soon as we learn
+	 * we will be crawling it.
+	 */
+	public static void prefetch(String host) {
+		resolveAsync(host);
+	}
+
+	public static CompletableFuture<InetAddress> resolveAsync(final String host) {
+		while (true) {
+			Entry e = cache.get(host);
+			if (e != null && e.expires > System.currentTimeMillis()) {
+				return e.address;
+			}
+			final Entry n = new Entry();
+			if (e == null ? cache.putIfAbsent(host, n) == null : cache.replace(
+					host, e, n)) {
+				if (cache.size() > MAX_ENTRIES) {
+					evict();
+				}
+				resolvers.execute(new Runnable() {
+					@Override
+					public void run() {
+						lookup(host, n);
+					}
+				});
+				return n.address;
+			}
+		}
+	}
+
+	/**
+	 * Blocking lookup through the cache.
+	 */
+	public static InetAddress resolve(String host) throws UnknownHostException {
+		try {
+			return resolveAsync(host).join();
+		} catch (CompletionException e) {
+			throw new UnknownHostException(host);
+		}
+	}
+
+	private static void lookup(String host, Entry e) {
+		try {
+			InetAddress a = InetAddress.getByName(host);
+			e.expires = System.currentTimeMillis() + TTL;
+			e.address.complete(a);
+		} catch (UnknownHostException ex) {
+			logger.debug("Unknown host " + host);
+			e.expires = System.currentTimeMillis() + NEGATIVE_TTL;
+			e.address.completeExceptionally(new HttpClientException(
+					"Unknown hostname"));
+		} catch (RuntimeException ex) {
+			e.expires = System.currentTimeMillis() + NEGATIVE_TTL;
+			e.address.completeExceptionally(ex);
+		}
+	}
+
+	private static void evict() {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			int excess = cache.size() - MAX_ENTRIES * 3 / 4;
+			long now = System.currentTimeMillis();
+			Iterator<Entry> it = cache.values().iterator();
+			while (excess > 0 && it.hasNext()) {
+				if (it.next().expires <= now) {
+					it.remove();
+					excess--;
+				}
+			}
+			it = cache.values().iterator();
+			while (excess > 0 && it.hasNext()) {
+				it.next();
+				it.remove();
+				excess--;
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+}
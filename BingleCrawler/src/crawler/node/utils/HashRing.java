@@ -0,0 +1,119 @@
+package crawler.node.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which node crawls a host: a consistent-hash ring with VNODES points per
+ * node, so a node joining or leaving moves only about 1/n of the hosts, and
+ * those to or from that node alone. The master and the nodes build the
+ * same ring from the same member list, whatever its order. Immutable;
+ * with() and without() make the ring for the next membership. Owners are
+ * cached per host.
+ */
+public class HashRing {
+	public static final int VNODES = Integer.getInteger("crawler.vnodes", 128);
+	private static final int MAX_CACHED = 1 << 20;
+
+	private final List<String> members;
+	private final long[] points;
+	private final String[] owners;
+	private final ConcurrentHashMap<String, String> cache = new ConcurrentHashMap<>();
+
+	public HashRing(Collection<String> members) {
+		TreeSet<String> sorted = new TreeSet<>(members);
+		this.members = Collections.unmodifiableList(new ArrayList<>(sorted));
+		TreeMap<Long, String> ring = new TreeMap<>();
+		for (String m : sorted) {
+			for (int i = 0; i < VNODES; i++) {
+				Long p = UrlHash.hash64(i, m);
+				// On the odd collision the first member in order keeps it
+				if (!ring.containsKey(p)) {
+					ring.put(p, m);
+				}
+			}
+		}
+		points = new long[ring.size()];
+		owners = new String[ring.size()];
+		int i = 0;
+		for (Map.Entry<Long, String> e : ring.entrySet()) {
+			points[i] = e.getKey();
+			owners[i++] = e.getValue();
+		}
+	}
+
+	/**
+	 * The member owning host, or null if there are none.
+	 */
+	public String ownerOf(String host) {
+		if (points.length == 0) {
+			return null;
+		}
+		String owner = cache.get(host);
+		if (owner != null) {
+			return owner;
+		}
+		int i = Arrays.binarySearch(points, UrlHash.hash64(host));
+		if (i < 0) {
+			i = -i - 1;
+		}
+		owner = owners[i == points.length ? 0 : i];
+		if (cache.size() >= MAX_CACHED) {
+			cache.clear();
+		}
+		cache.put(host, owner);
+		return owner;
+	}
+
+	public List<String> getMembers() {
+		return members;
+	}
+
+	public boolean contains(String member) {
+		return members.contains(member);
+	}
+
+	public HashRing with(String member) {
+		List<String> m = new ArrayList<>(members);
+		m.add(member);
+		return new HashRing(m);
+	}
+
+	public HashRing without(String member) {
+		List<String> m = new ArrayList<>(members);
+		m.remove(member);
+		return new HashRing(m);
+	}
+
+	/**
+	 * The members joined with ',', as sent in "qring:" messages.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (String m : members) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(m);
+		}
+		return sb.toString();
+	}
+
+	public static HashRing parse(String s) {
+		List<String> m = new ArrayList<>();
+		for (String part : s.split(",")) {
+			if (!part.isEmpty()) {
+				m.add(part);
+			}
+		}
+		return new HashRing(m);
+	}
+}
@@ -2,33 +2,32 @@ package crawler.node.utils;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.HttpURLConnection;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 
-import org.apache.commons.codec.binary.Hex;
 import org.apache.http.util.ByteArrayBuffer;
 import org.apache.log4j.Logger;
 
-import com.amazonaws.util.IOUtils;
 import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 
 public class HttpClient {
@@ -50,224 +49,493 @@ public class HttpClient {
 		}
 	}
 
+	/**
+	 * Inspects a 200 response once its headers are in. Returning false stops
+	 * the client from reading the body: the response comes back with
+	 * aborted set and no data.
+	 */
+	public interface HeaderCheck {
+		boolean accept(HttpResponse hr);
+	}
+
 	public static class HttpResponse {
 		public int status;
 		public Map<String, List<String>> headers;
-		public byte[] data;
 		public int redirect;
 		public URLInfo u;
 		public long contentLength;
 		public String contentType;
-	}
+		public boolean aborted;
+		private ByteBuffer pooled;
+		private ByteBuffer body;
+		// The page as it came off the wire (or out of a segment) while
+		// still content encoded; body is decoded from it on first use
+		private ByteBuffer encodedPooled;
+		private ByteBuffer encoded;
+		private String encoding;
+
+		public boolean hasBody() {
+			return body != null || encoded != null;
+		}
 
-	public static HttpResponse headRequest(URLInfo url, String date) {
-		int attempts = 0;
-		URLInfo u = url;
-		HttpResponse hr = runRequest(url, "HEAD", date);
-		while (hr.status == 301 && ++attempts < MAX_REDIRECT) {
-			try {
-				String loc = hr.headers.get("Location").get(0);
-				if (loc.startsWith("http://") || loc.startsWith("https://")) {
-					u = new URLInfo(loc);
-				} else {
-					u = URLInfo.withFP(u, loc);
-				}
-				logger.debug("Redirecting to " + u.toString());
-				hr = runRequest(u, "HEAD", date);
-				hr.redirect = attempts;
-			} catch (NullPointerException npe) {
-				throw new HttpClientException("No location given for 301");
+		/**
+		 * Read-only view of the decoded page, or null if it could not be
+		 * decoded. Only valid until release() is called.
+		 */
+		public synchronized ByteBuffer getBody() {
+			if (body == null && encoded != null) {
+				decode();
 			}
+			return body == null ? null : body.duplicate();
 		}
-		return hr;
-	}
 
-	public static HttpResponse getRequest(URLInfo url) {
-		int attempts = 0;
-		URLInfo u = url;
-		HttpResponse hr = runRequest(url, "GET", null);
-		while (hr.status == 301 && ++attempts < MAX_REDIRECT) {
-			try {
-				String loc = hr.headers.get("Location").get(0);
-				if (loc.startsWith("http://") || loc.startsWith("https://")) {
-					u = new URLInfo(loc);
-				} else {
-					u = URLInfo.withFP(u, loc);
-				}
-				logger.debug("Redirecting to " + u.toString());
-				hr = runRequest(u, "GET", null);
-				hr.redirect = attempts;
-			} catch (NullPointerException npe) {
-				throw new HttpClientException("No location given for 301");
+		public InputStream getBodyStream() {
+			return new BufferPool.BufferInputStream(getBody());
+		}
+
+		/**
+		 * The page as received: still compressed if getEncoding() is not
+		 * null. Only valid until release() is called.
+		 */
+		public synchronized ByteBuffer getEncodedBody() {
+			if (encoded != null) {
+				return encoded.duplicate();
 			}
+			return body == null ? null : body.duplicate();
 		}
-		return hr;
-	}
 
-	private static HttpResponse runRequest(URLInfo u, String requestType,
-			String date) {
-		OutputStream o;
-		InputStream i;
-		if (u.isSecure() || u.getFilePath().equals(u.getFilePath()) ) {
-			URL x;
-			try {
-				x = new URL(u.toString());
-			} catch (MalformedURLException e1) {
-				throw new HttpClientException("Malformed URL");
+		/**
+		 * Content coding of getEncodedBody(), "gzip" or "deflate", or null
+		 * if the page was not compressed.
+		 */
+		public synchronized String getEncoding() {
+			return encoded == null ? null : encoding;
+		}
+
+		/**
+		 * Bytes held for this response, compressed and decoded.
+		 */
+		public synchronized int getBufferedLength() {
+			return (body == null ? 0 : body.remaining())
+					+ (encoded == null ? 0 : encoded.remaining());
+		}
+
+		public void setBody(byte[] data) {
+			release();
+			body = ByteBuffer.wrap(data).asReadOnlyBuffer();
+		}
+
+		/**
+		 * Use len bytes of buf from off as the body. buf must come from
+		 * BufferPool; the response now owns it and release() returns it.
+		 */
+		public void setBody(ByteBuffer buf, int off, int len) {
+			setBody(buf, off, len, null);
+		}
+
+		/**
+		 * As setBody(buf, off, len), for a body still in the given content
+		 * coding. It is only decompressed once someone asks for getBody().
+		 */
+		public synchronized void setBody(ByteBuffer buf, int off, int len,
+				String encoding) {
+			release();
+			ByteBuffer b = buf.duplicate();
+			b.limit(off + len);
+			b.position(off);
+			if (encoding == null) {
+				pooled = buf;
+				body = b.slice().asReadOnlyBuffer();
+			} else {
+				encodedPooled = buf;
+				encoded = b.slice().asReadOnlyBuffer();
+				this.encoding = encoding;
 			}
+		}
 
+		private void decode() {
+			ByteBuffer b;
+			InputStream in = null;
 			try {
-				HttpsURLConnection.setFollowRedirects(false);
-				HttpURLConnection.setFollowRedirects(false);
-				HttpURLConnection ux;
-				
-				if (u.isSecure()) {
-					ux = (HttpsURLConnection) x.openConnection();
-				} else {
-					ux = (HttpURLConnection) x.openConnection();
+				in = decoder(new BufferPool.BufferInputStream(
+						encoded.duplicate()), encoding);
+				b = BufferPool.getPool().readFully(in, maxSize);
+			} catch (IOException e) {
+				logger.debug("Bad " + encoding + " body", e);
+				b = null;
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
 				}
-				ux.setRequestMethod(requestType);
+			}
+			if (b == null) {
+				// Corrupt, or larger than maxSize once inflated
+				release();
+				return;
+			}
+			pooled = b;
+			body = b.asReadOnlyBuffer();
+		}
+
+		/**
+		 * Hand the page buffers back to the pool. Whoever consumes the
+		 * response last calls this.
+		 */
+		public synchronized void release() {
+			body = null;
+			encoded = null;
+			encoding = null;
+			if (pooled != null) {
+				BufferPool.getPool().release(pooled);
+				pooled = null;
+			}
+			if (encodedPooled != null) {
+				BufferPool.getPool().release(encodedPooled);
+				encodedPooled = null;
+			}
+		}
+	}
 
-				if (date != null) {
-					ux.setIfModifiedSince(ServerUtils.dateFromString(date)
-							.getTime());
+	/**
+	 * The content coding we keep compressed pages in, from a
+	 * Content-Encoding value, or null for anything we leave as is.
+	 */
+	public static String codingOf(String contentEncoding) {
+		if (contentEncoding == null) {
+			return null;
+		}
+		String ce = contentEncoding.trim().toLowerCase();
+		if (ce.equals("gzip") || ce.equals("x-gzip")) {
+			return "gzip";
+		}
+		if (ce.equals("deflate")) {
+			return "deflate";
+		}
+		return null;
+	}
+
+	/**
+	 * Stream decoding in from the given content coding. "deflate" is
+	 * accepted both zlib wrapped, as the spec says, and raw, as some
+	 * servers send it.
+	 */
+	public static InputStream decoder(InputStream in, String encoding)
+			throws IOException {
+		if (encoding == null) {
+			return in;
+		}
+		if (encoding.equals("gzip")) {
+			return new GZIPInputStream(in);
+		}
+		if (encoding.equals("deflate")) {
+			PushbackInputStream p = new PushbackInputStream(in, 2);
+			int b0 = p.read();
+			int b1 = p.read();
+			if (b1 >= 0) {
+				p.unread(b1);
+			}
+			if (b0 >= 0) {
+				p.unread(b0);
+			}
+			boolean zlib = (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+			final Inflater inflater = new Inflater(!zlib);
+			return new InflaterInputStream(p, inflater) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					inflater.end();
 				}
-				ux.setRequestProperty("User-Agent", "cis455crawler");
-				ux.setRequestProperty("Accept-Encoding", "gzip, deflate");
+			};
+		}
+		throw new IOException("Unknown content coding " + encoding);
+	}
 
+	/**
+	 * Blocking HEAD, through the AsyncHttpClient like every other request
+	 * so host lookups go through the DnsCache.
+	 */
+	public static HttpResponse headRequest(URLInfo url, String date) {
+		return await(headRequestAsync(url, date));
+	}
 
-				ux.setReadTimeout(TIMEOUT);
+	public static HttpResponse getRequest(URLInfo url) {
+		return await(getRequestAsync(url));
+	}
 
-				i = ux.getErrorStream();
+	private static HttpResponse await(CompletableFuture<HttpResponse> f) {
+		try {
+			return f.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof HttpClientException) {
+				throw (HttpClientException) e.getCause();
+			}
+			logger.debug("Request failed", e.getCause());
+			throw new HttpClientException("Request failed");
+		}
+	}
 
-				HttpResponse hr = new HttpResponse();
-				hr.status = ux.getResponseCode();
-				hr.contentLength = ux.getContentLengthLong();
+	/**
+	 * Non-blocking HEAD. The request is handed to the shared
+	 * AsyncHttpClient and the returned future completes (on a callback
+	 * thread, never the selector) once redirects have been followed.
+	 */
+	public static CompletableFuture<HttpResponse> headRequestAsync(
+			URLInfo url, String date) {
+		return runRequestAsync(url, "HEAD", date, 0);
+	}
 
-				hr.contentType = ux.getContentType();
+	public static CompletableFuture<HttpResponse> getRequestAsync(URLInfo url) {
+		return runRequestAsync(url, "GET", null, 0);
+	}
 
-				hr.headers = ux.getHeaderFields();
-				hr.u = u;
+	/**
+	 * A GET that does the job of HEAD and GET in one round trip: it is
+	 * conditional on date and etag (either may be null), and check decides
+	 * from the 200 headers whether the body is worth downloading. Redirects
+	 * are not followed, since the target may be disallowed or on another
+	 * host: the 3xx comes back for the caller to queue its Location.
+	 */
+	public static CompletableFuture<HttpResponse> conditionalGetRequestAsync(
+			URLInfo url, String date, String etag, HeaderCheck check) {
+		return AsyncHttpClient.getClient().execute(url, "GET", date, etag,
+				check);
+	}
 
-				if (!requestType.equals("GET")) {
-					return hr;
-				}
-				
-				if (i == null) {
-					String enc = ux.getContentEncoding();
-					if (enc == null) {
-						if (hr.headers.containsKey("Content-Encoding")) {
-							enc = hr.headers.get("Content-Encoding").get(0);
+	private static CompletableFuture<HttpResponse> runRequestAsync(
+			URLInfo u, String requestType, String date, int attempts) {
+		return runRequestAsync(u, requestType, date, null, null, attempts);
+	}
+
+	private static CompletableFuture<HttpResponse> runRequestAsync(
+			final URLInfo u, final String requestType, final String date,
+			String etag, final HeaderCheck check, final int attempts) {
+		return AsyncHttpClient.getClient()
+				.execute(u, requestType, date, etag, check)
+				.thenCompose(new Function<HttpResponse, CompletionStage<HttpResponse>>() {
+					@Override
+					public CompletionStage<HttpResponse> apply(HttpResponse hr) {
+						hr.redirect = attempts;
+						if (hr.status != 301 || attempts + 1 >= MAX_REDIRECT) {
+							return CompletableFuture.completedFuture(hr);
 						}
+						URLInfo next = redirectTarget(hr, u);
+						logger.debug("Redirecting to " + next.toString());
+						// The etag belongs to the original URL
+						return runRequestAsync(next, requestType, date, null,
+								check, attempts + 1);
 					}
-					if (enc == null || !enc.equals("gzip")) {
-						i = ux.getInputStream();
-					} else {
-						i = new GZIPInputStream(ux.getInputStream());
+				});
+	}
 
-					}
-				}
+	/**
+	 * GET url and hand back the body as a stream instead of reading it into
+	 * a page buffer, for documents that can be much larger than maxSize
+	 * (sitemaps). Follows redirects and undoes gzip content encoding. The
+	 * caller closes the stream.
+	 */
+	public static InputStream openStream(URLInfo url) {
+		URLInfo u = url;
+		int attempts = 0;
+		while (true) {
+			HttpURLConnection ux;
+			int status;
+			try {
+				ux = (HttpURLConnection) new URL(u.toString()).openConnection();
+				ux.setInstanceFollowRedirects(false);
+				ux.setRequestProperty("User-Agent", "cis455crawler");
+				ux.setRequestProperty("Accept-Encoding", "gzip");
+				ux.setConnectTimeout(TIMEOUT);
+				ux.setReadTimeout(TIMEOUT);
+				status = ux.getResponseCode();
+			} catch (IOException e) {
+				throw new HttpClientException("Unable to connect");
+			}
 
-				
-				int count = ux.getContentLength();
-				int totalCount = 0;
-				byte[] buf = new byte[1024];
-				
-				ByteArrayOutputStream bs = new ByteArrayOutputStream();
-				
-				while ((count = i.read(buf, 0, buf.length)) > 0 && totalCount < maxSize ) {
-					bs.write(buf);
-					totalCount += count;
+			if ((status == 301 || status == 302) && ++attempts < MAX_REDIRECT) {
+				HttpResponse hr = new HttpResponse();
+				hr.headers = ux.getHeaderFields();
+				ux.disconnect();
+				u = redirectTarget(hr, u);
+				logger.debug("Redirecting to " + u.toString());
+				continue;
+			}
+			if (status != 200) {
+				ux.disconnect();
+				throw new HttpClientException("Status was " + status);
+			}
+			try {
+				InputStream i = ux.getInputStream();
+				if ("gzip".equals(ux.getContentEncoding())) {
+					i = new GZIPInputStream(i);
 				}
+				return i;
+			} catch (IOException e) {
+				ux.disconnect();
+				throw new HttpClientException("Error reading response");
+			}
+		}
+	}
+
+	public static URLInfo redirectTarget(HttpResponse hr, URLInfo u) {
+		String loc = firstHeader(hr.headers, "Location");
+		if (loc == null) {
+			throw new HttpClientException("No location given for 301");
+		}
+		if (loc.startsWith("http://") || loc.startsWith("https://")) {
+			return new URLInfo(loc);
+		}
+		return URLInfo.withFP(u, loc);
+	}
+
+	public static String firstHeader(Map<String, List<String>> headers,
+			String name) {
+		if (headers == null) {
+			return null;
+		}
+		for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+			if (e.getKey() != null && e.getKey().equalsIgnoreCase(name)
+					&& !e.getValue().isEmpty()) {
+				return e.getValue().get(0);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A request over HttpURLConnection, which resolves the host itself. The
+	 * AsyncHttpClient hands HTTPS requests here.
+	 */
+	static HttpResponse runRequest(URLInfo u, String requestType,
+			String date, String etag, HeaderCheck check) {
+		InputStream i;
+		URL x;
+		try {
+			x = new URL(u.toString());
+		} catch (MalformedURLException e1) {
+			throw new HttpClientException("Malformed URL");
+		}
+
+		try {
+			HttpsURLConnection.setFollowRedirects(false);
+			HttpURLConnection.setFollowRedirects(false);
+			HttpURLConnection ux;
 			
-				if (totalCount < maxSize) {
-					hr.data = bs.toByteArray();
-				}
-				return hr;
-			} catch (Exception e) {
-				logger.debug("HTTPS EXCEPTION!", e);
-				throw new HttpClientException("Unable to connect");
+			if (u.isSecure()) {
+				ux = (HttpsURLConnection) x.openConnection();
+			} else {
+				ux = (HttpURLConnection) x.openConnection();
 			}
+			ux.setRequestMethod(requestType);
 
-		} else {
-			InetAddress a;
-			try {
-				a = InetAddress.getByName(u.getHostName());
-			} catch (UnknownHostException e1) {
-				throw new HttpClientException("Unknown hostname");
+			if (date != null) {
+				ux.setIfModifiedSince(ServerUtils.dateFromString(date)
+						.getTime());
+			}
+			if (etag != null) {
+				ux.setRequestProperty("If-None-Match", etag);
 			}
-			InetSocketAddress address = new InetSocketAddress(a, u.getPortNo());
+			ux.setRequestProperty("User-Agent", "cis455crawler");
+			ux.setRequestProperty("Accept-Encoding", "gzip, deflate");
 
-			Socket s = new Socket();
-			try {
-				s.bind(null);
-			} catch (IOException e1) {
-				try {
-					s.close();
-				} catch (IOException e) {
-				}
-				throw new HttpClientException("Could not bind socket to port");
+			// A host that never accepts would hold a secure pool thread
+			ux.setConnectTimeout(TIMEOUT);
+			ux.setReadTimeout(TIMEOUT);
+
+			HttpResponse hr = new HttpResponse();
+			hr.status = ux.getResponseCode();
+			hr.contentLength = ux.getContentLengthLong();
+
+			hr.contentType = ux.getContentType();
+
+			hr.headers = ux.getHeaderFields();
+			hr.u = u;
+
+			if (!requestType.equals("GET") || hr.status != 200) {
+				return hr;
 			}
 
-			try {
-				s.setSoTimeout(TIMEOUT);
-				s.connect(address);
-				o = s.getOutputStream();
-				i = s.getInputStream();
-			} catch (IOException e) {
-				try {
-					s.close();
-				} catch (IOException be) {
-				}
-				throw new HttpClientException(
-						"Could not connect to specified address");
+			if (check != null && !check.accept(hr)) {
+				hr.aborted = true;
+				ux.disconnect();
+				return hr;
 			}
+
+			i = ux.getInputStream();
 			try {
-				writeRequest(u, o, requestType, date);
-			} catch (IOException e) {
-				try {
-					s.close();
-				} catch (IOException ex) {
+				ByteBuffer body = BufferPool.getPool().readFully(i, maxSize);
+				if (body != null) {
+					hr.setBody(body, 0, body.limit(),
+							codingOf(ux.getContentEncoding()));
 				}
-				throw new HttpClientException("Error writing request to socket");
-			}
-			try {
-				HttpResponse hrr = readResponse(i, requestType.equals("GET"),
-						maxSize);
-				hrr.u = u;
-				return hrr;
-			} catch (IOException e) {
-				logger.debug("IOException plain Http response", e);
-				throw new HttpClientException("Error reading response");
 			} finally {
-				try {
-					s.close();
-				} catch (IOException e) {
-				}
+				i.close();
 			}
+			return hr;
+		} catch (Exception e) {
+			logger.debug("HTTPS EXCEPTION!", e);
+			throw new HttpClientException("Unable to connect");
 		}
-
 	}
 
-	private static void writeRequest(URLInfo u, OutputStream o,
-			String requestType, String modifiedSince) throws IOException {
-		byte[] getReq = (requestType + " " + u.getFilePath() + " HTTP/1.1\r\n" + "Host: www.cnn.com\r\n")
-				.getBytes();
-		o.write(getReq);
+	static byte[] buildRequest(URLInfo u, String requestType,
+			String modifiedSince, String etag) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(requestType).append(' ').append(u.getFilePath())
+				.append(" HTTP/1.1\r\nHost: ").append(u.getHostName());
+		if (u.getPortNo() != (u.isSecure() ? 443 : 80)) {
+			sb.append(':').append(u.getPortNo());
+		}
+		sb.append("\r\n");
 		if (modifiedSince != null) {
-			o.write(("If-Modified-Since: " + modifiedSince + "\r\n").getBytes());
+			sb.append("If-Modified-Since: ").append(modifiedSince);
+			if (!modifiedSince.endsWith("GMT")) {
+				sb.append(" GMT");
+			}
+			sb.append("\r\n");
 		}
-		o.write(DEFAULT_HEADERS);
-		o.flush();
+		if (etag != null) {
+			sb.append("If-None-Match: ").append(etag).append("\r\n");
+		}
+		byte[] start = sb.toString().getBytes();
+		byte[] req = new byte[start.length + DEFAULT_HEADERS.length];
+		System.arraycopy(start, 0, req, 0, start.length);
+		System.arraycopy(DEFAULT_HEADERS, 0, req, start.length,
+				DEFAULT_HEADERS.length);
+		return req;
 	}
 
-	private static HttpResponse readResponse(InputStream s, boolean data,
-			int maxSize) throws IOException {
+	/**
+	 * Index just past the blank line ending the response head, or -1 if the
+	 * head is not complete within the first len bytes. Scanning restarts a
+	 * little before from, so callers can feed it as data arrives.
+	 */
+	static int headerEnd(ByteBuffer response, int from, int len) {
+		for (int ix = Math.max(0, from - 3); ix < len - 3; ix++) {
+			if (response.get(ix) == 0x0d && response.get(ix + 1) == 0x0a
+					&& response.get(ix + 2) == 0x0d
+					&& response.get(ix + 3) == 0x0a) {
+				return ix + 4;
+			}
+		}
+		return -1;
+	}
 
-		byte[] response = IOUtils.toByteArray(s);
+	static HttpResponse parseHead(ByteBuffer response, int len)
+			throws IOException {
+		byte[] head = new byte[len];
+		ByteBuffer b = response.duplicate();
+		b.position(0);
+		b.get(head, 0, len);
+		return parseHead(head, len);
+	}
 
+	private static HttpResponse parseHead(byte[] response, int len)
+			throws IOException {
 		BufferedReader i = new BufferedReader(new InputStreamReader(
-				new ByteArrayInputStream(response)));
+				new ByteArrayInputStream(response, 0, len)));
 
 		String line1 = i.readLine();
 
@@ -296,58 +564,83 @@ public class HttpClient {
 		}
 
 		hr.headers = parseHeaders(i);
-
 		i.close();
-		
-		if (!data || hr.status != 200) {
-			return hr;
-		}
 
-		int dataStartIndex = -1;
-		for (int ix = 0; ix < response.length - 3; ix++) {
-			if (response[ix] == 0x0d && response[ix + 1] == 0x0a
-					&& response[ix + 2] == 0x0d && response[ix + 3] == 0x0a) {
-				dataStartIndex = ix+4;
-				break;
+		hr.contentType = firstHeader(hr.headers, "Content-Type");
+		String len1 = firstHeader(hr.headers, "Content-Length");
+		hr.contentLength = -1;
+		if (len1 != null) {
+			try {
+				hr.contentLength = Long.parseLong(len1.trim());
+			} catch (NumberFormatException e) {
 			}
 		}
-		
-		if (dataStartIndex < 0) {
-			return hr;
-		}
-		
-		if (response.length - dataStartIndex > maxSize) {
-			return hr;
+		return hr;
+	}
+
+	/**
+	 * Undo the transfer encoding of the raw body held in buf at [off, off +
+	 * len) and attach the result to hr. A gzip or deflate content encoding
+	 * is left in place for HttpResponse to undo when the page is read.
+	 * Takes ownership of buf.
+	 */
+	static void attachBody(HttpResponse hr, ByteBuffer buf, int off, int len)
+			throws IOException {
+		String te = firstHeader(hr.headers, "Transfer-Encoding");
+		if (te != null && te.toLowerCase().contains("chunked")) {
+			len = dechunk(buf, off, len);
 		}
 
-		if (hr.headers.containsKey("Content-Encoding")) {
-			List<String> sz = hr.headers.get("Content-Encoding");
-			String sy = sz.get(0);
-			if (sy != null && sy.equals("gzip")) {
-				try {
-					byte[] newStr = IOUtils.toByteArray(new GZIPInputStream(
-							new ByteArrayInputStream(response, dataStartIndex, maxSize)));
-					hr.data = newStr;
-				} catch (IOException e) {
-					logger.debug("GZIP!", e);
-					logger.debug(dataStartIndex);
-//					logger.debug()
-					logger.debug(Hex.encodeHexString(IOUtils.toString(new ByteArrayInputStream(response, 0 , maxSize)).getBytes()));
-					return hr;
-				}
+		hr.setBody(buf, off, len,
+				codingOf(firstHeader(hr.headers, "Content-Encoding")));
+	}
 
+	/**
+	 * Strip chunk framing in place; returns the new body length.
+	 */
+	private static int dechunk(ByteBuffer buf, int off, int len) {
+		int r = off;
+		int w = off;
+		int end = off + len;
+		while (r < end) {
+			int lineEnd = r;
+			while (lineEnd < end - 1
+					&& !(buf.get(lineEnd) == 0x0d && buf.get(lineEnd + 1) == 0x0a)) {
+				lineEnd++;
 			}
+			int chunk = 0;
+			boolean digits = false;
+			for (int ix = r; ix < lineEnd; ix++) {
+				int d = Character.digit(buf.get(ix), 16);
+				if (d < 0) {
+					if (digits) {
+						break;
+					}
+					continue;
+				}
+				digits = true;
+				chunk = chunk * 16 + d;
+			}
+			r = lineEnd + 2;
+			if (!digits || chunk <= 0) {
+				break;
+			}
+			chunk = Math.min(chunk, end - r);
+			ByteBuffer src = buf.duplicate();
+			src.limit(r + chunk);
+			src.position(r);
+			ByteBuffer dst = buf.duplicate();
+			dst.position(w);
+			dst.put(src);
+			w += chunk;
+			r += chunk + 2;
 		}
-		
-		if (hr.data == null) {
-			hr.data = IOUtils.toByteArray(new ByteArrayInputStream(response,dataStartIndex,maxSize));
-		}
-
-		return hr;
+		return w - off;
 	}
 
 	private static Map<String, List<String>> parseHeaders(BufferedReader i) {
-		TreeMap<String, List<String>> headers = new TreeMap<>();
+		TreeMap<String, List<String>> headers = new TreeMap<>(
+				String.CASE_INSENSITIVE_ORDER);
 		List<String> l = null;
 		while (true) {
 			String line = null;
@@ -0,0 +1,80 @@
+package crawler.node.utils;
+
+/**
+ * Set of longs in a single open addressing table, about 11 to 21 bytes an
+ * entry instead of the ~60 of a HashSet&lt;Long&gt;. Safe for concurrent use.
+ */
+public class LongHashSet {
+	private static final int MIN_CAPACITY = 16;
+	private long[] table;
+	private int size;
+	// 0 marks an empty slot, so it is tracked on the side
+	private boolean hasZero;
+
+	public LongHashSet() {
+		table = new long[MIN_CAPACITY];
+	}
+
+	/**
+	 * Returns true if v was not already in the set.
+	 */
+	public synchronized boolean add(long v) {
+		if (v == 0) {
+			if (hasZero) {
+				return false;
+			}
+			hasZero = true;
+			size++;
+			return true;
+		}
+		if (!insert(table, v)) {
+			return false;
+		}
+		if (++size * 4L > table.length * 3L) {
+			rehash(table.length * 2);
+		}
+		return true;
+	}
+
+	public synchronized boolean contains(long v) {
+		if (v == 0) {
+			return hasZero;
+		}
+		int mask = table.length - 1;
+		for (int i = (int) UrlHash.mix(v) & mask;; i = (i + 1) & mask) {
+			if (table[i] == v) {
+				return true;
+			}
+			if (table[i] == 0) {
+				return false;
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private static boolean insert(long[] t, long v) {
+		int mask = t.length - 1;
+		for (int i = (int) UrlHash.mix(v) & mask;; i = (i + 1) & mask) {
+			if (t[i] == v) {
+				return false;
+			}
+			if (t[i] == 0) {
+				t[i] = v;
+				return true;
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] t = new long[capacity];
+		for (long v : table) {
+			if (v != 0) {
+				insert(t, v);
+			}
+		}
+		table = t;
+	}
+}
@@ -0,0 +1,162 @@
+package crawler.node.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Allow and Disallow rules of one robots.txt group compiled into a
+ * trie. '*' matches any run of characters and a trailing '$' anchors the
+ * rule to the end of the path. allowed() walks the trie once along the
+ * path, tracking the (usually one or two) trie nodes still alive, and
+ * applies the longest matching rule, with Allow winning ties.
+ */
+public class RobotsMatcher {
+	private static final int NONE = -1;
+
+	private static class Node {
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+		// Reached through a '*': stays alive on any character
+		final boolean star;
+		Node starChild;
+		// Best rule ending here, as prefix and as '$' anchored pattern
+		int prefixScore = NONE;
+		int anchoredScore = NONE;
+
+		Node(boolean star) {
+			this.star = star;
+		}
+
+		Node child(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		Node addChild(char c) {
+			Node n = child(c);
+			if (n == null) {
+				n = new Node(false);
+				int len = keys.length;
+				char[] k = new char[len + 1];
+				Node[] ch = new Node[len + 1];
+				System.arraycopy(keys, 0, k, 0, len);
+				System.arraycopy(children, 0, ch, 0, len);
+				k[len] = c;
+				ch[len] = n;
+				keys = k;
+				children = ch;
+			}
+			return n;
+		}
+
+		Node addStar() {
+			if (starChild == null) {
+				starChild = new Node(true);
+			}
+			return starChild;
+		}
+	}
+
+	private final Node root;
+	private final boolean empty;
+
+	/**
+	 * Either list may be null. Empty rules are ignored ("Disallow:" with no
+	 * path allows everything).
+	 */
+	public RobotsMatcher(List<String> allowed, List<String> disallowed) {
+		root = new Node(false);
+		int rules = add(allowed, true) + add(disallowed, false);
+		empty = rules == 0;
+	}
+
+	private int add(List<String> rules, boolean allow) {
+		if (rules == null) {
+			return 0;
+		}
+		int count = 0;
+		for (String r : rules) {
+			if (r != null && !r.isEmpty()) {
+				add(r, allow);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void add(String rule, boolean allow) {
+		// Longer rules win; allow breaks a tie
+		int score = rule.length() * 2 + (allow ? 1 : 0);
+		boolean anchored = rule.endsWith("$");
+		int len = anchored ? rule.length() - 1 : rule.length();
+		Node n = root;
+		for (int i = 0; i < len; i++) {
+			char c = rule.charAt(i);
+			if (c == '*') {
+				if (!n.star) {
+					n = n.addStar();
+				}
+			} else {
+				n = n.addChild(c);
+			}
+		}
+		if (anchored) {
+			n.anchoredScore = Math.max(n.anchoredScore, score);
+		} else {
+			n.prefixScore = Math.max(n.prefixScore, score);
+		}
+	}
+
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	public boolean allowed(String path) {
+		if (empty) {
+			return true;
+		}
+		int best = NONE;
+		List<Node> active = new ArrayList<>(4);
+		List<Node> next = new ArrayList<>(4);
+		enter(active, root);
+		for (int i = 0; i < path.length() && !active.isEmpty(); i++) {
+			char c = path.charAt(i);
+			next.clear();
+			for (int j = 0; j < active.size(); j++) {
+				Node n = active.get(j);
+				best = Math.max(best, n.prefixScore);
+				if (n.star) {
+					enter(next, n);
+				}
+				Node ch = n.child(c);
+				if (ch != null) {
+					enter(next, ch);
+				}
+			}
+			List<Node> t = active;
+			active = next;
+			next = t;
+		}
+		for (int j = 0; j < active.size(); j++) {
+			Node n = active.get(j);
+			best = Math.max(best, Math.max(n.prefixScore, n.anchoredScore));
+		}
+		return best == NONE || (best & 1) == 1;
+	}
+
+	/**
+	 * Add n, and the '*' that may follow it (matching nothing), to states.
+	 */
+	private static void enter(List<Node> states, Node n) {
+		while (n != null) {
+			if (!states.contains(n)) {
+				states.add(n);
+			}
+			n = n.starChild;
+		}
+	}
+}
@@ -76,6 +76,13 @@ public class RobotsTxtInfo {
 		return allowedLinks.get(key);
 	}
 
+	/**
+	 * The Allow/Disallow rules for key compiled for matching.
+	 */
+	public RobotsMatcher getMatcher(String key) {
+		return new RobotsMatcher(allowedLinks.get(key), disallowedLinks.get(key));
+	}
+
 	public Integer getCrawlDelay(String key) {
 		return crawlDelays.get(key);
 	}
@@ -0,0 +1,154 @@
+package crawler.node.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 64-bit SimHash of the visible text of a page. Markup, comments and the
+ * contents of script and style elements are skipped, the text is split
+ * into lower case words, and every pair of adjacent words is a feature.
+ * Pages that differ only in a few words (dates, counters, session ids)
+ * end up a few bits apart. Pages with fewer than MIN_WORDS words (frames,
+ * image-only pages, script shells, redirects) have too few features for
+ * that to mean anything and get TOO_SHORT instead.
+ */
+public class SimHash {
+	public static final int MIN_WORDS = Integer.getInteger(
+			"crawler.nearDupMinWords", 32);
+	public static final long TOO_SHORT = 0;
+	private static final long WORD_SEED = 0x84222325cbf29ce4L;
+
+	public static long compute(ByteBuffer page) {
+		int[] v = new int[64];
+		int end = page.limit();
+		long word = WORD_SEED;
+		boolean inWord = false;
+		long prev = 0;
+		int words = 0;
+
+		int i = page.position();
+		while (i < end) {
+			byte c = page.get(i);
+			if (c == '<') {
+				if (inWord) {
+					prev = add(v, prev, word, words++);
+					word = WORD_SEED;
+					inWord = false;
+				}
+				i = skipMarkup(page, i, end);
+				continue;
+			}
+			if (isWordByte(c)) {
+				if (c >= 'A' && c <= 'Z') {
+					c += 'a' - 'A';
+				}
+				word = (word ^ (c & 0xff)) * 0x100000001b3L;
+				inWord = true;
+			} else if (inWord) {
+				prev = add(v, prev, word, words++);
+				word = WORD_SEED;
+				inWord = false;
+			}
+			i++;
+		}
+		if (inWord) {
+			add(v, prev, word, words++);
+		}
+		if (words < MIN_WORDS) {
+			return TOO_SHORT;
+		}
+
+		long h = 0;
+		for (int b = 0; b < 64; b++) {
+			if (v[b] > 0) {
+				h |= 1L << b;
+			}
+		}
+		return h;
+	}
+
+	public static int distance(long a, long b) {
+		return Long.bitCount(a ^ b);
+	}
+
+	/**
+	 * Count the shingle ending in word; returns word's hash for the next
+	 * one. A single word page still gets its word counted.
+	 */
+	private static long add(int[] v, long prev, long word, int index) {
+		long w = UrlHash.mix(word);
+		if (index == 0) {
+			count(v, w);
+		} else {
+			if (index == 1) {
+				// Replace the lone first word with the first pair
+				uncount(v, prev);
+			}
+			count(v, UrlHash.mix(prev * 31 + w));
+		}
+		return w;
+	}
+
+	private static void count(int[] v, long h) {
+		for (int b = 0; b < 64; b++) {
+			v[b] += ((h >>> b) & 1) != 0 ? 1 : -1;
+		}
+	}
+
+	private static void uncount(int[] v, long h) {
+		for (int b = 0; b < 64; b++) {
+			v[b] -= ((h >>> b) & 1) != 0 ? 1 : -1;
+		}
+	}
+
+	/**
+	 * i is at a '<'. Returns the position after the tag, comment, or
+	 * script/style element it starts.
+	 */
+	private static int skipMarkup(ByteBuffer b, int i, int end) {
+		if (startsWith(b, i, end, "<!--")) {
+			return skipPast(b, i + 4, end, "-->");
+		}
+		if (startsWith(b, i, end, "<script")) {
+			return skipPast(b, i + 7, end, "</script");
+		}
+		if (startsWith(b, i, end, "<style")) {
+			return skipPast(b, i + 6, end, "</style");
+		}
+		while (i < end && b.get(i) != '>') {
+			i++;
+		}
+		return i + 1;
+	}
+
+	private static boolean startsWith(ByteBuffer b, int i, int end,
+			String lower) {
+		if (end - i < lower.length()) {
+			return false;
+		}
+		for (int j = 0; j < lower.length(); j++) {
+			byte c = b.get(i + j);
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			if (c != lower.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int skipPast(ByteBuffer b, int i, int end, String lower) {
+		for (; i < end; i++) {
+			if (startsWith(b, i, end, lower)) {
+				return i + lower.length();
+			}
+		}
+		return end;
+	}
+
+	// Letters, digits and any non-ASCII (UTF-8) byte
+	private static boolean isWordByte(byte c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+				|| (c >= '0' && c <= '9') || c < 0;
+	}
+}
@@ -0,0 +1,40 @@
+package crawler.node.utils;
+
+/**
+ * 64-bit string hashing for the crawler's URL sets: FNV-1a over the
+ * characters followed by the MurmurHash3 finaliser, so every bit of the
+ * result depends on every character.
+ */
+public class UrlHash {
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	public static long hash64(CharSequence s) {
+		return hash64(FNV_OFFSET, s);
+	}
+
+	/**
+	 * Hash of s in the namespace of seed, e.g. a path under the hash of its
+	 * domain.
+	 */
+	public static long hash64(long seed, CharSequence s) {
+		long h = seed;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			h ^= c & 0xff;
+			h *= FNV_PRIME;
+			h ^= c >>> 8;
+			h *= FNV_PRIME;
+		}
+		return mix(h);
+	}
+
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -35,6 +35,7 @@ public class HtmlStripper {
 							// UI
 	String contents; // non-HTML doc content
 	String title; // doc's title
+	String html; // page contents, if read from a segment rather than a file
 	static final double a = .4; // for calculating normalized TF value
 	DecimalFormat df;
 	static final String[] STOP_WORDS_LIST = new String[] {"I", "a", "about",
@@ -49,11 +50,40 @@ public class HtmlStripper {
 		this.df = df;
 	}
 
+	/**
+	 * Creates an HtmlStripper for one page of a crawler segment.
+	 * 
+	 * @param segment
+	 *            The segment the page was read from.
+	 * @param docID
+	 *            The page's fingerprint, as recorded in the segment.
+	 * @param html
+	 *            The page contents.
+	 */
+	public HtmlStripper(File segment, String docID, String html,
+			DecimalFormat df) {
+		this.file = segment;
+		this.docID = docID;
+		this.html = html;
+		this.df = df;
+	}
+
+	/**
+	 * Parses the page, then drops the HTML, which is no longer needed.
+	 */
+	public void sanitizeText() throws IOException {
+		sanitizeText(readTextFromFile());
+		html = null;
+	}
+
 	/**
 	 * Opens and reads from file, storing contents in this object.
 	 * 
 	 */
 	public String readTextFromFile() throws IOException {
+		if (html != null) {
+			return html;
+		}
 		BufferedReader reader;
 		// System.out.println(file);
 		reader = new BufferedReader(new FileReader(file));
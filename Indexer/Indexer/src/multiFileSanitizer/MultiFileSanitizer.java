@@ -40,6 +40,7 @@ public class MultiFileSanitizer {
 	// to place output files
 	
 	static int numDocs;
+	static final int SEGMENT_BATCH = 2000; // pages of a segment per output file
 	DecimalFormat df;
 
 	/**
@@ -98,7 +99,7 @@ public class MultiFileSanitizer {
 	 *            A queue of up to 2000 files to be read in.
 	 */
 	public void parseDocs(LinkedBlockingQueue<File> currentBatch) {
-		int threads = currentBatch.size() / 100; // create number of threads
+		int threads = Math.max(1, currentBatch.size() / 100); // create number of threads
 													// relative to number of
 													// documents in the batch
 													// (goal is roughly 20 docs
@@ -143,12 +144,15 @@ public class MultiFileSanitizer {
 	 *            A queue of up to 2000 files to be read in.
 	 */
 	private void combineFiles() {
-		Writer uiTextWriter = null;
-		Writer frequenciesWriter = null;
 		String path = null;
 		String name = null;
 		String newPathPrefix = null;
 
+		// a batch of segments has already been written out as it was read
+		if (filesToWrite.isEmpty()) {
+			return;
+		}
+
 		// ensure output files have unique names (though they'll be related,
 		// randomly, to some input files' names)
 		try {
@@ -158,6 +162,21 @@ public class MultiFileSanitizer {
 		} catch (IOException e) {
 			// TODO
 		}
+		writeFiles(filesToWrite, newPathPrefix);
+	}
+
+	/**
+	 * Writes out the index and UI files for a set of parsed documents.
+	 * 
+	 * @param stripped
+	 *            The parsed documents.
+	 * @param newPathPrefix
+	 *            The path the output file names start with.
+	 */
+	private void writeFiles(LinkedBlockingQueue<HtmlStripper> stripped,
+			String newPathPrefix) {
+		Writer uiTextWriter = null;
+		Writer frequenciesWriter = null;
 
 		// create output file for UI-related info
 		try {
@@ -186,9 +205,9 @@ public class MultiFileSanitizer {
 		}
 
 		// Create one thread for writing to each file
-		Thread fw = new Thread(new FrequenciesWriterThread(filesToWrite,
+		Thread fw = new Thread(new FrequenciesWriterThread(stripped,
 				frequenciesWriter));
-		Thread ui = new Thread(new UiTextWriterThread(filesToWrite,
+		Thread ui = new Thread(new UiTextWriterThread(stripped,
 				uiTextWriter));
 
 		fw.start();
@@ -235,7 +254,12 @@ public class MultiFileSanitizer {
 		public void run() {
 
 			while (!queue.isEmpty()) {
-				HtmlStripper hs = new HtmlStripper(queue.remove(), df);
+				File f = queue.remove();
+				if (SegmentReader.isSegment(f)) {
+					readSegment(f);
+					continue;
+				}
+				HtmlStripper hs = new HtmlStripper(f, df);
 				try {
 					hs.sanitizeText(hs.readTextFromFile());
 					hs.createMap();
@@ -249,6 +273,72 @@ public class MultiFileSanitizer {
 				}
 			}
 		}
+
+		/**
+		 * Scans a crawler segment from start to end, processing each page it
+		 * holds as if it had been a file of its own. Pages are written out
+		 * every SEGMENT_BATCH pages, so only that many are held at once.
+		 * 
+		 * @param segment
+		 *            The segment file to read.
+		 */
+		private void readSegment(File segment) {
+			SegmentReader reader;
+			try {
+				reader = new SegmentReader(segment);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			LinkedBlockingQueue<HtmlStripper> stripped = new LinkedBlockingQueue<>();
+			int part = 0;
+			long failedAt = -1;
+			try {
+				while (true) {
+					try {
+						if (!reader.next()) {
+							break;
+						}
+					} catch (IOException e) {
+						System.err.println("Bad record in " + segment
+								+ " at offset " + reader.offset + ": "
+								+ e.getMessage());
+						if (reader.position == failedAt) {
+							break; // not getting anywhere
+						}
+						failedAt = reader.position;
+						continue;
+					}
+					HtmlStripper hs = new HtmlStripper(segment, reader.docID,
+							reader.html, df);
+					hs.sanitizeText();
+					hs.createMap();
+					hs.createRelativeFrequency();
+					stripped.add(hs);
+					if (stripped.size() >= SEGMENT_BATCH) {
+						writeSegmentPart(segment, part++, stripped);
+						stripped = new LinkedBlockingQueue<>();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+			if (!stripped.isEmpty()) {
+				writeSegmentPart(segment, part, stripped);
+			}
+		}
+
+		private void writeSegmentPart(File segment, int part,
+				LinkedBlockingQueue<HtmlStripper> stripped) {
+			File out = new File(segment.getParentFile(), "concatenatedOut/"
+					+ segment.getName() + "-" + part);
+			writeFiles(stripped, out.getPath());
+		}
 	}
 
 	/**
@@ -0,0 +1,208 @@
+package multiFileSanitizer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Sequential reader for the segment files the crawler writes: WARC/1.0
+ * response records, each holding one page. Reads one record at a time, so
+ * a segment of any size can be scanned start to end. After a bad record
+ * next() can be called again: it skips ahead to the next record.
+ */
+public class SegmentReader {
+	static final String SUFFIX = ".warc";
+	static final String FINGERPRINT_HEADER = "Bingle-Fingerprint";
+
+	DataInputStream in;
+	String url; // WARC-Target-URI of current record
+	String docID; // crawler fingerprint of current record
+	String html; // body of current record
+	long offset; // where the current record starts in the segment
+	long position; // bytes read so far
+
+	/**
+	 * Opens a segment for reading.
+	 * 
+	 * @param segment
+	 *            The segment file to scan.
+	 */
+	public SegmentReader(File segment) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				segment), 1 << 16));
+	}
+
+	/**
+	 * Checks whether a file is a crawler segment rather than a single page.
+	 * 
+	 * @param file
+	 *            The file to check.
+	 * @return true if the file should be read with a SegmentReader.
+	 */
+	public static boolean isSegment(File file) {
+		return file.getName().endsWith(SUFFIX);
+	}
+
+	/**
+	 * Advances to the next record, skipping anything before its WARC line.
+	 * 
+	 * @return false once the end of the segment has been reached.
+	 */
+	public boolean next() throws IOException {
+		String line;
+		do {
+			offset = position;
+			line = readLine();
+			if (line == null) {
+				return false;
+			}
+		} while (!line.startsWith("WARC/"));
+
+		long length = -1;
+		url = null;
+		docID = null;
+		while ((line = readLine()) != null && !line.isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				length = Long.parseLong(value);
+			} else if (name.equalsIgnoreCase("WARC-Target-URI")) {
+				url = value;
+			} else if (name.equalsIgnoreCase(FINGERPRINT_HEADER)) {
+				docID = value;
+			}
+		}
+		if (length < 0) {
+			throw new IOException("Record without Content-Length");
+		}
+
+		byte[] block = new byte[(int) length];
+		try {
+			in.readFully(block);
+		} catch (EOFException e) {
+			// Segment still being written, or cut short by a crash
+			return false;
+		}
+		position += length;
+		int body = 0;
+		for (int i = 0; i + 3 < block.length; i++) {
+			if (block[i] == '\r' && block[i + 1] == '\n'
+					&& block[i + 2] == '\r' && block[i + 3] == '\n') {
+				body = i + 4;
+				break;
+			}
+		}
+		String encoding = contentEncoding(new String(block, 0, body,
+				"UTF-8"));
+		if (encoding == null) {
+			html = new String(block, body, block.length - body);
+		} else {
+			html = new String(decode(block, body, encoding));
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the Content-Encoding the crawler stored the body in.
+	 * 
+	 * @param head
+	 *            The HTTP response head of the record.
+	 * @return "gzip" or "deflate", or null if the body is not compressed.
+	 */
+	private static String contentEncoding(String head) {
+		for (String line : head.split("\r\n")) {
+			int colon = line.indexOf(':');
+			if (colon > 0
+					&& line.substring(0, colon).trim()
+							.equalsIgnoreCase("Content-Encoding")) {
+				return line.substring(colon + 1).trim().toLowerCase();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Decompresses a stored body.
+	 * 
+	 * @param block
+	 *            The record block.
+	 * @param off
+	 *            Where the body starts in block.
+	 * @param encoding
+	 *            The body's Content-Encoding.
+	 * @return the page bytes.
+	 */
+	private static byte[] decode(byte[] block, int off, String encoding)
+			throws IOException {
+		InputStream body = new ByteArrayInputStream(block, off, block.length
+				- off);
+		Inflater inflater = null;
+		if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+			body = new GZIPInputStream(body);
+		} else if (encoding.equals("deflate")) {
+			// zlib wrapped as we write it, but servers also send raw deflate
+			int b0 = off < block.length ? block[off] & 0xff : 0;
+			int b1 = off + 1 < block.length ? block[off + 1] & 0xff : 0;
+			boolean zlib = (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+			inflater = new Inflater(!zlib);
+			body = new InflaterInputStream(body, inflater);
+		} else {
+			throw new IOException("Unknown Content-Encoding " + encoding);
+		}
+		try {
+			ByteArrayOutputStream page = new ByteArrayOutputStream(
+					(block.length - off) * 4);
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = body.read(buf)) != -1) {
+				page.write(buf, 0, n);
+			}
+			return page.toByteArray();
+		} finally {
+			body.close();
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Reads a CRLF (or LF) terminated header line.
+	 * 
+	 * @return the line without its terminator, or null at end of file.
+	 */
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int c;
+		while ((c = in.read()) != -1) {
+			position++;
+			if (c == '\n') {
+				break;
+			}
+			if (c != '\r') {
+				line.write(c);
+			}
+		}
+		if (c == -1 && line.size() == 0) {
+			return null;
+		}
+		return line.toString("UTF-8");
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}